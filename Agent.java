@@ -1,64 +1,307 @@
-
-import java.util.UUID;
-
-/**
- * Agent class that contains an agent UID and classname.
- */
-public class Agent {
-
-    private String UID; // Unique ID of the agent.
-    private String className;  // Class name / type of the agent.
-
-    /**
-     * Constructor for Agent.
-     *
-     * @param name Classname of the agent.
-     */
-    public Agent(String name) {
-        className = name;
-        setUID();
-    }
-
-    /**
-     * Sets the unique ID of this agent.
-     */
-    private void setUID() {
-        UID = UUID.randomUUID().toString();
-    }
-
-    /**
-     * Retrieves the unique ID of this agent.
-     *
-     * @return String representing this agent's UID.
-     */
-    public String getUID() {
-        return UID;
-    }
-
-    /**
-     * Retrieves the classname of this agent.
-     *
-     * @return String representing this agent's classname.
-     */
-    public String getClassName() {
-        return className;
-    }
-
-    /**
-     * Sets the classname of this agent.
-     *
-     * @param toSet String representing what "classname" will be set to.
-     */
-    public void setClassName(String toSet) {
-        className = toSet;
-    }
-
-    /**
-     * Each agent has a "start" method that is intended to be overridden.
-     *
-     * @return Boolean representing completion of the start method.
-     */
-    public boolean start() {
-        return true;
-    }
-}
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent class that contains an agent UID, classname and a bounded mailbox of
+ * messages routed to it by the AgentSystem.
+ *
+ * An agent moves through a lifecycle: it is INITIALIZED when created, RUNNING
+ * while its start method runs, STOPPING once stop() was called and until start
+ * returns, then STOPPED, or FAILED if start threw or returned false without
+ * being asked to stop. The AgentScheduler restarts FAILED agents with backoff,
+ * calling init() before every run.
+ */
+public class Agent {
+
+    /**
+     * Lifecycle state of an agent.
+     */
+    public enum State {
+        INITIALIZED, // Created, or reset to run again, but not running.
+        RUNNING, // The start method is running.
+        STOPPING, // Asked to stop: the mailbox is closed and being drained.
+        STOPPED, // Finished, or stopped on request.
+        FAILED // Crashed or returned false; may be restarted.
+    }
+
+    private AgentId id; // Unique ID of the agent.
+    private String UID; // Unique ID of the agent as text, for logging.
+    private String className;  // Class name / type of the agent.
+    private final Mailbox inbox; // Messages routed to this agent.
+    private volatile State state = State.INITIALIZED; // Where this agent is in its lifecycle.
+    private volatile int restarts; // Times this agent was restarted after failing.
+    private final AgentMetrics metrics = new AgentMetrics(this); // Messages and bytes this agent sent and received.
+
+    /**
+     * Constructor for Agent.
+     *
+     * @param name Classname of the agent.
+     */
+    public Agent(String name) {
+        this(name, new Mailbox());
+    }
+
+    /**
+     * Constructor for Agent with its own mailbox, for agents that need a
+     * different capacity or overflow policy than the system default.
+     *
+     * @param name Classname of the agent.
+     * @param mailbox Mailbox receiving the messages routed to the agent.
+     */
+    public Agent(String name, Mailbox mailbox) {
+        className = name;
+        inbox = mailbox;
+        setUID();
+    }
+
+    /**
+     * Sets the unique ID of this agent.
+     */
+    private void setUID() {
+        id = AgentId.next();
+        UID = id.toString();
+    }
+
+    /**
+     * Gives this agent the UID it had in a previous run, restored from a
+     * snapshot. Only done before the agent is registered.
+     *
+     * @param restored The previous UID.
+     */
+    void restoreId(AgentId restored) {
+        id = restored;
+        UID = id.toString();
+    }
+
+    /**
+     * Retrieves the unique ID of this agent as carried on the wire.
+     *
+     * @return AgentId representing this agent's UID.
+     */
+    public AgentId getId() {
+        return id;
+    }
+
+    /**
+     * Retrieves the unique ID of this agent.
+     *
+     * @return String representing this agent's UID.
+     */
+    public String getUID() {
+        return UID;
+    }
+
+    /**
+     * Retrieves the classname of this agent.
+     *
+     * @return String representing this agent's classname.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Sets the classname of this agent.
+     *
+     * @param toSet String representing what "classname" will be set to.
+     */
+    public void setClassName(String toSet) {
+        className = toSet;
+    }
+
+    /**
+     * Prepares this agent to run. Called before start, and again before every
+     * restart, so that an agent can reset state left behind by a failed run.
+     * Intended to be overridden.
+     */
+    public void init() {
+    }
+
+    /**
+     * Saves the state this agent wants back after the AgentSystem restarts,
+     * for a snapshot. Called once the agent has stopped, on the thread taking
+     * the snapshot. Intended to be overridden.
+     *
+     * @return Byte array representing the state, or null for none.
+     */
+    public byte[] saveState() {
+        return null;
+    }
+
+    /**
+     * Restores the state saved by saveState in a previous run. Called before
+     * the agent is registered and started. Intended to be overridden.
+     *
+     * @param state The saved state.
+     */
+    public void restoreState(byte[] state) {
+    }
+
+    /**
+     * Each agent has a "start" method that is intended to be overridden.
+     *
+     * @return Boolean representing completion of the start method.
+     */
+    public boolean start() {
+        return true;
+    }
+
+    /**
+     * Asks this agent to stop. Its mailbox stops accepting messages, and
+     * receive returns null once the messages already delivered have been
+     * taken, so an agent that loops on receive finishes its work and returns.
+     */
+    public synchronized void stop() {
+        if (state == State.INITIALIZED || state == State.RUNNING || state == State.FAILED) {
+            state = State.STOPPING;
+        }
+        inbox.close();
+        notifyAll();
+    }
+
+    /**
+     * Retrieves where this agent is in its lifecycle.
+     *
+     * @return State of this agent.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Checks whether this agent was asked to stop, for agents that do not
+     * wait on receive alone.
+     *
+     * @return Boolean representing whether stop() was called.
+     */
+    public boolean isStopping() {
+        return state == State.STOPPING;
+    }
+
+    /**
+     * Retrieves the number of times this agent was restarted after failing.
+     *
+     * @return Integer representing the restart count.
+     */
+    public int getRestartCount() {
+        return restarts;
+    }
+
+    /**
+     * Marks this agent as running, unless it was asked to stop first.
+     *
+     * @return Boolean representing whether the agent should run.
+     */
+    synchronized boolean running() {
+        if (state == State.STOPPING) {
+            return false;
+        }
+        if (state == State.FAILED) {
+            restarts++;
+        }
+        state = State.RUNNING;
+        return true;
+    }
+
+    /**
+     * Records how a run of this agent ended.
+     *
+     * @param completed Whether start returned true.
+     * @return State the agent is in now: STOPPED, or FAILED if it should be
+     * restarted.
+     */
+    synchronized State finished(boolean completed) {
+        state = completed || state == State.STOPPING ? State.STOPPED : State.FAILED;
+        return state;
+    }
+
+    /**
+     * Waits until this agent is asked to stop, e.g. between restarts.
+     *
+     * @param nanos Maximum time to wait in nanoseconds.
+     * @return Boolean representing whether stop() was called.
+     * @throws InterruptedException
+     */
+    synchronized boolean awaitStop(long nanos) throws InterruptedException {
+        long deadline = System.nanoTime() + nanos;
+        while (state != State.STOPPING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Prepares a stopped or failed agent to be started again.
+     */
+    synchronized void reset() {
+        if (state == State.STOPPED || state == State.FAILED) {
+            inbox.open();
+            state = State.INITIALIZED;
+        }
+    }
+
+    /**
+     * Retrieves the counters of the messages this agent sent and received.
+     *
+     * @return AgentMetrics of this agent.
+     */
+    public AgentMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Retrieves the mailbox of this agent, e.g. to read its depth and drop
+     * counters.
+     *
+     * @return Mailbox holding the messages routed to this agent.
+     */
+    public Mailbox getMailbox() {
+        return inbox;
+    }
+
+    /**
+     * Delivers a message to this agent's mailbox.
+     *
+     * @param msg The message routed to this agent.
+     * @return Boolean representing whether the mailbox accepted the message.
+     */
+    boolean deliver(Message msg) {
+        return inbox.offer(msg);
+    }
+
+    /**
+     * Waits for the next message routed to this agent.
+     *
+     * @return Message received, or null if the agent was interrupted, or was
+     * stopped and has taken every message delivered before.
+     */
+    public Message receive() {
+        try {
+            return inbox.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt(); // Agent was cancelled.
+        }
+        return null;
+    }
+
+    /**
+     * Waits at most the given time for the next message routed to this agent.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return Message received, or null if none arrived in time, the agent
+     * was interrupted, or it was stopped and has taken every message.
+     */
+    public Message receive(long timeout, TimeUnit unit) {
+        try {
+            return inbox.poll(timeout, unit);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt(); // Agent was cancelled.
+        }
+        return null;
+    }
+}
@@ -0,0 +1,256 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AgentDirectory class that remembers the agents announced on the network,
+ * keyed by UID and by classname. Entries expire after a time to live, so
+ * lookups are answered from memory until an agent has not been heard from for
+ * that long.
+ */
+public class AgentDirectory {
+
+    public static final String TTL_PROPERTY = "agentsystem.directoryTtlMs"; // Time to live of an entry.
+
+    private final long ttlNanos; // How long an entry stays valid after it was recorded.
+    private final Map<AgentId, Entry> byUID = new ConcurrentHashMap<>(); // Entries by agent UID.
+    private final Map<String, Map<AgentId, Entry>> byClass = new ConcurrentHashMap<>(); // Entries by classname.
+
+    /**
+     * Constructor for AgentDirectory.
+     *
+     * @param ttlMillis Time to live of an entry in milliseconds.
+     */
+    public AgentDirectory(long ttlMillis) {
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Records or refreshes an announced agent and wakes up any thread waiting
+     * for an agent of its class.
+     *
+     * @param uid UID of the announced agent.
+     * @param className Classname of the announced agent.
+     * @param address Address the agent can be reached at.
+     */
+    public void record(AgentId uid, String className, InetSocketAddress address) {
+        record(uid, className, address, ttlNanos);
+    }
+
+    /**
+     * Records an agent that stays valid for the given time rather than the
+     * directory's time to live, e.g. one restored from a snapshot.
+     *
+     * @param uid UID of the agent.
+     * @param className Classname of the agent.
+     * @param address Address the agent can be reached at.
+     * @param lifeNanos How long the entry stays valid.
+     */
+    public synchronized void record(AgentId uid, String className, InetSocketAddress address, long lifeNanos) {
+        Entry entry = new Entry(uid, className, address, System.nanoTime() + lifeNanos);
+        Entry previous = byUID.put(uid, entry);
+        if (previous != null && !previous.className.equals(className)) {
+            remove(previous);
+        }
+        byClass.computeIfAbsent(className, k -> new ConcurrentHashMap<>()).put(uid, entry);
+        notifyAll();
+    }
+
+    /**
+     * Looks up an agent by UID.
+     *
+     * @param uid UID of the agent.
+     * @return Entry of the agent, or null if it is unknown or expired.
+     */
+    public Entry lookup(AgentId uid) {
+        Entry entry = byUID.get(uid);
+        return entry == null || evictIfExpired(entry, System.nanoTime()) ? null : entry;
+    }
+
+    /**
+     * Looks up any agent of the given class.
+     *
+     * @param className Classname of the agent.
+     * @return Entry of an agent of that class, or null if none is known.
+     */
+    public Entry lookup(String className) {
+        Map<AgentId, Entry> entries = byClass.get(className);
+        if (entries != null) {
+            long now = System.nanoTime();
+            for (Entry entry : entries.values()) {
+                if (!evictIfExpired(entry, now)) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up every known agent of the given class.
+     *
+     * @param className Classname of the agents.
+     * @return List of the entries of every unexpired agent of that class.
+     */
+    public List<Entry> lookupAll(String className) {
+        List<Entry> found = new ArrayList<>();
+        Map<AgentId, Entry> entries = byClass.get(className);
+        if (entries != null) {
+            long now = System.nanoTime();
+            for (Entry entry : entries.values()) {
+                if (!evictIfExpired(entry, now)) {
+                    found.add(entry);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Retrieves every known agent, e.g. to save them in a snapshot.
+     *
+     * @return List of the entries of every unexpired agent.
+     */
+    public List<Entry> getAll() {
+        List<Entry> found = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Entry entry : byUID.values()) {
+            if (!evictIfExpired(entry, now)) {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Waits at most the given time for an agent of the given class to be
+     * recorded.
+     *
+     * @param className Classname of the agent.
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return Entry of an agent of that class, or null if none was recorded
+     * in time.
+     * @throws InterruptedException
+     */
+    public synchronized Entry await(String className, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        Entry found = lookup(className);
+        while (found == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null; // Timed out.
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            found = lookup(className);
+        }
+        return found;
+    }
+
+    /**
+     * Forgets an agent, e.g. because it could not be reached.
+     *
+     * @param uid UID of the agent.
+     */
+    public void evict(AgentId uid) {
+        Entry entry = byUID.remove(uid);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Removes an entry if it has expired.
+     *
+     * @param entry The entry to check.
+     * @param now Current System.nanoTime().
+     * @return Boolean representing whether the entry had expired.
+     */
+    private boolean evictIfExpired(Entry entry, long now) {
+        if (now - entry.expiresAt < 0) {
+            return false;
+        }
+        byUID.remove(entry.uid, entry);
+        remove(entry);
+        return true;
+    }
+
+    /**
+     * Removes an entry from the classname index.
+     *
+     * @param entry The entry to remove.
+     */
+    private void remove(Entry entry) {
+        Map<AgentId, Entry> entries = byClass.get(entry.className);
+        if (entries != null) {
+            entries.remove(entry.uid, entry);
+        }
+    }
+
+    /**
+     * Entry class holding what is known about one announced agent.
+     */
+    public static class Entry {
+
+        private final AgentId uid; // UID of the agent.
+        private final String className; // Classname of the agent.
+        private final InetSocketAddress address; // Address the agent can be reached at.
+        private final long expiresAt; // System.nanoTime() at which the entry expires.
+
+        /**
+         * Constructor for Entry.
+         *
+         * @param id UID of the agent.
+         * @param name Classname of the agent.
+         * @param addr Address the agent can be reached at.
+         * @param expiry System.nanoTime() at which the entry expires.
+         */
+        Entry(AgentId id, String name, InetSocketAddress addr, long expiry) {
+            uid = id;
+            className = name;
+            address = addr;
+            expiresAt = expiry;
+        }
+
+        /**
+         * Retrieves the UID of the agent.
+         *
+         * @return AgentId representing the agent's UID.
+         */
+        public AgentId getUID() {
+            return uid;
+        }
+
+        /**
+         * Retrieves the classname of the agent.
+         *
+         * @return String representing the agent's classname.
+         */
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * Retrieves the address the agent can be reached at.
+         *
+         * @return InetSocketAddress of the agent's AgentSystem.
+         */
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Retrieves how much longer this entry stays valid.
+         *
+         * @param now Current System.nanoTime().
+         * @return Long representing the nanoseconds left, or a negative value
+         * if the entry has expired.
+         */
+        public long getRemainingNanos(long now) {
+            return expiresAt - now;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AgentId class that is the 128-bit unique ID of an agent, held as two longs.
+ * New IDs are a random prefix chosen once per AgentSystem followed by a
+ * counter, so creating one takes an increment rather than a SecureRandom
+ * draw as UUID.randomUUID() does. On the wire an ID is its two longs, 16
+ * bytes; as text it is rendered in the usual UUID form, which keeps logs and
+ * the text wire format unchanged.
+ */
+public final class AgentId implements Comparable<AgentId> {
+
+    public static final AgentId BROADCAST = new AgentId(0L, 0L); // Target of a message for every agent.
+
+    public static final int BYTES = 16; // Size of the wire encoding.
+
+    private static volatile long node = nodePrefix(); // High half of every ID created by this AgentSystem.
+    private static final AtomicLong counter = new AtomicLong(); // Low half of the last ID created.
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long most; // High half of the ID.
+    private final long least; // Low half of the ID.
+
+    /**
+     * Constructor for AgentId.
+     *
+     * @param mostBits High half of the ID.
+     * @param leastBits Low half of the ID.
+     */
+    public AgentId(long mostBits, long leastBits) {
+        most = mostBits;
+        least = leastBits;
+    }
+
+    /**
+     * Creates a new ID, unique within this AgentSystem and, with
+     * overwhelming probability, among all AgentSystems.
+     *
+     * @return AgentId that was created.
+     */
+    public static AgentId next() {
+        return new AgentId(node, counter.incrementAndGet());
+    }
+
+    /**
+     * Continues the IDs of a previous run of this AgentSystem, so that agents
+     * restored from a snapshot keep their UIDs and are still recognized as
+     * local. Only possible before the first ID is created, and only safe if
+     * that run has ended.
+     *
+     * @param savedNode Prefix of the IDs of the previous run.
+     * @param savedCounter Counter of the last ID created by the previous run.
+     * @return Boolean representing whether the IDs were continued.
+     */
+    static synchronized boolean resume(long savedNode, long savedCounter) {
+        if (counter.get() != 0) {
+            return false; // IDs with the current prefix already exist.
+        }
+        node = savedNode;
+        counter.set(savedCounter);
+        return true;
+    }
+
+    /**
+     * Retrieves the prefix of the IDs created by this AgentSystem.
+     *
+     * @return Long representing the high half of every new ID.
+     */
+    static long getNode() {
+        return node;
+    }
+
+    /**
+     * Retrieves the counter of the last ID created.
+     *
+     * @return Long representing the low half of the last new ID.
+     */
+    static long getCounter() {
+        return counter.get();
+    }
+
+    /**
+     * Parses an ID rendered by toString, or any UUID string.
+     *
+     * @param text The text to parse.
+     * @return AgentId that was parsed.
+     * @throws IllegalArgumentException if the text is not an ID.
+     */
+    public static AgentId parse(String text) {
+        UUID uuid = UUID.fromString(text);
+        return new AgentId(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Reads an ID from its wire encoding at the given index.
+     *
+     * @param in Buffer to read from.
+     * @param index Index of the first byte.
+     * @return AgentId that was read.
+     */
+    public static AgentId read(ByteBuffer in, int index) {
+        return new AgentId(in.getLong(index), in.getLong(index + 8));
+    }
+
+    /**
+     * Writes the wire encoding of this ID at the buffer's position.
+     *
+     * @param out Buffer to write into.
+     */
+    public void write(ByteBuffer out) {
+        out.putLong(most);
+        out.putLong(least);
+    }
+
+    /**
+     * Retrieves the high half of this ID.
+     *
+     * @return Long representing the most significant bits.
+     */
+    public long getMostSignificantBits() {
+        return most;
+    }
+
+    /**
+     * Retrieves the low half of this ID.
+     *
+     * @return Long representing the least significant bits.
+     */
+    public long getLeastSignificantBits() {
+        return least;
+    }
+
+    /**
+     * Compares this ID with one read straight from a frame, without creating
+     * an AgentId for it.
+     *
+     * @param mostBits High half of the other ID.
+     * @param leastBits Low half of the other ID.
+     * @return Boolean representing whether the IDs are equal.
+     */
+    public boolean matches(long mostBits, long leastBits) {
+        return most == mostBits && least == leastBits;
+    }
+
+    /**
+     * Checks whether this ID was created by this AgentSystem, i.e. whether it
+     * belongs to a local agent.
+     *
+     * @return Boolean representing whether the ID has this system's prefix.
+     */
+    public boolean isLocal() {
+        return most == node;
+    }
+
+    /**
+     * Checks whether an ID given by its high half was created by this
+     * AgentSystem, without creating an AgentId.
+     *
+     * @param mostBits High half of the ID.
+     * @return Boolean representing whether the ID has this system's prefix.
+     */
+    public static boolean isLocal(long mostBits) {
+        return mostBits == node;
+    }
+
+    /**
+     * Checks whether this is the broadcast ID.
+     *
+     * @return Boolean representing whether this ID addresses every agent.
+     */
+    public boolean isBroadcast() {
+        return most == 0L && least == 0L;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof AgentId)) {
+            return false;
+        }
+        AgentId id = (AgentId) other;
+        return most == id.most && least == id.least;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash(most, least);
+    }
+
+    /**
+     * Hashes an ID given by its halves, as hashCode does.
+     *
+     * @param mostBits High half of the ID.
+     * @param leastBits Low half of the ID.
+     * @return Integer representing the hash.
+     */
+    static int hash(long mostBits, long leastBits) {
+        // Counter IDs differ only in the low bits: spread them over the hash.
+        return Long.hashCode(mostBits ^ (leastBits * 0x9E3779B97F4A7C15L));
+    }
+
+    @Override
+    public int compareTo(AgentId other) {
+        int order = Long.compare(most, other.most);
+        return order != 0 ? order : Long.compare(least, other.least);
+    }
+
+    /**
+     * Renders this ID in the usual 36 character UUID form, for logging and
+     * the text wire format.
+     *
+     * @return String representing this ID.
+     */
+    @Override
+    public String toString() {
+        char[] text = new char[36];
+        hex(text, 0, most >>> 32, 8);
+        text[8] = '-';
+        hex(text, 9, most >>> 16, 4);
+        text[13] = '-';
+        hex(text, 14, most, 4);
+        text[18] = '-';
+        hex(text, 19, least >>> 48, 4);
+        text[23] = '-';
+        hex(text, 24, least, 12);
+        return new String(text);
+    }
+
+    /**
+     * Writes the low digits of a value as hexadecimal.
+     *
+     * @param out Array to write into.
+     * @param offset Index of the first digit.
+     * @param value The value to write.
+     * @param digits Number of digits to write.
+     */
+    private static void hex(char[] out, int offset, long value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            out[i] = HEX[(int) value & 0xF];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Chooses the random prefix of this AgentSystem's IDs. It is never 0, so
+     * no ID is ever the broadcast ID.
+     *
+     * @return Long representing the prefix.
+     */
+    private static long nodePrefix() {
+        long prefix;
+        do {
+            prefix = ThreadLocalRandom.current().nextLong() ^ System.nanoTime() ^ ProcessHandle.current().pid();
+        } while (prefix == 0L);
+        return prefix;
+    }
+}
@@ -0,0 +1,391 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * AgentLog class that writes log lines from a background thread, so that
+ * agents never block on the console. A caller only checks the level and puts
+ * the pattern and its arguments into a preallocated slot of a bounded Ring;
+ * the "{}" placeholders are filled in, and the line written, by the
+ * "agent-log" thread. A disabled level costs a single comparison, and no
+ * string is built on the caller's thread either way. Arguments are formatted
+ * later, so they must not change after the call; pass values rather than
+ * pooled Messages.
+ *
+ * When the ring is full, lines are dropped and counted rather than making the
+ * caller wait. install() routes java.util.logging through the same ring, so
+ * the Logger calls at catch sites stop writing to the console synchronously
+ * as well.
+ *
+ * Lines go to standard output, as plain text or, with
+ * "agentsystem.log.format=kv", as time, level and msg fields; records from
+ * java.util.logging go to standard error.
+ */
+public final class AgentLog {
+
+    public static final String LEVEL_PROPERTY = "agentsystem.log.level"; // Lowest level written.
+    public static final String BUFFER_PROPERTY = "agentsystem.log.bufferSize"; // Lines the ring holds.
+    public static final String FORMAT_PROPERTY = "agentsystem.log.format"; // "plain" or "kv".
+
+    private static final int MAX_ARGS = 4; // Arguments a line can carry.
+
+    private static volatile int threshold = Level.parse(System.getProperty(LEVEL_PROPERTY, "INFO")).intValue();
+    private static final boolean KEY_VALUE = "kv".equalsIgnoreCase(System.getProperty(FORMAT_PROPERTY, "plain"));
+
+    private static final Ring<Entry> ring = new Ring<>(
+            Math.min(Integer.getInteger(BUFFER_PROPERTY, 8192), Ring.MAX_CAPACITY)); // Lines waiting to be written.
+    private static volatile long written; // Position after the last line written.
+    private static final LongAdder dropped = new LongAdder(); // Lines dropped because the ring was full.
+    private static final PrintStream out = System.out; // Where plain lines go.
+    private static final PrintStream err = System.err; // Where java.util.logging records go.
+    private static final Thread writer; // Thread writing the lines.
+    private static volatile boolean idle; // Whether the writer is parked waiting for lines.
+
+    static {
+        for (int i = 0; i < ring.getCapacity(); i++) {
+            ring.set(i, new Entry()); // Slots keep their entry, which is filled in place.
+        }
+        writer = new Thread(AgentLog::drain, "agent-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Constructor for AgentLog, which only has static methods.
+     */
+    private AgentLog() {
+    }
+
+    /**
+     * Routes java.util.logging through the ring: the console handlers of the
+     * root logger are replaced by one that hands records to the writer thread.
+     */
+    public static void install() {
+        Logger root = Logger.getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            if (handler instanceof java.util.logging.ConsoleHandler) {
+                root.removeHandler(handler);
+            }
+        }
+        root.addHandler(new RingHandler());
+    }
+
+    /**
+     * Checks whether lines of a level are written, e.g. before computing an
+     * expensive argument.
+     *
+     * @param level The level.
+     * @return Boolean representing whether the level is enabled.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.intValue() >= threshold;
+    }
+
+    /**
+     * Changes the lowest level written.
+     *
+     * @param level The new threshold.
+     */
+    public static void setLevel(Level level) {
+        threshold = level.intValue();
+    }
+
+    /**
+     * Logs an informational line.
+     *
+     * @param pattern Text of the line.
+     */
+    public static void info(String pattern) {
+        log(Level.INFO, pattern, null, null, null, null, 0);
+    }
+
+    /**
+     * Logs an informational line.
+     *
+     * @param pattern Text of the line, with a "{}" for the argument.
+     * @param a0 The argument.
+     */
+    public static void info(String pattern, Object a0) {
+        log(Level.INFO, pattern, a0, null, null, null, 1);
+    }
+
+    /**
+     * Logs an informational line.
+     *
+     * @param pattern Text of the line, with a "{}" for each argument.
+     * @param a0 The first argument.
+     * @param a1 The second argument.
+     */
+    public static void info(String pattern, Object a0, Object a1) {
+        log(Level.INFO, pattern, a0, a1, null, null, 2);
+    }
+
+    /**
+     * Logs an informational line.
+     *
+     * @param pattern Text of the line, with a "{}" for each argument.
+     * @param a0 The first argument.
+     * @param a1 The second argument.
+     * @param a2 The third argument.
+     */
+    public static void info(String pattern, Object a0, Object a1, Object a2) {
+        log(Level.INFO, pattern, a0, a1, a2, null, 3);
+    }
+
+    /**
+     * Logs an informational line.
+     *
+     * @param pattern Text of the line, with a "{}" for each argument.
+     * @param a0 The first argument.
+     * @param a1 The second argument.
+     * @param a2 The third argument.
+     * @param a3 The fourth argument.
+     */
+    public static void info(String pattern, Object a0, Object a1, Object a2, Object a3) {
+        log(Level.INFO, pattern, a0, a1, a2, a3, 4);
+    }
+
+    /**
+     * Logs a line at the given level.
+     *
+     * @param level Level of the line.
+     * @param pattern Text of the line, with a "{}" for each argument.
+     * @param a0 The first argument.
+     * @param a1 The second argument.
+     */
+    public static void log(Level level, String pattern, Object a0, Object a1) {
+        log(level, pattern, a0, a1, null, null, 2);
+    }
+
+    /**
+     * Waits until every line logged so far has been written, e.g. before
+     * prompting on the console.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return Boolean representing whether everything was written in time.
+     */
+    public static boolean flush(long timeout, TimeUnit unit) {
+        long target = ring.getTail();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (written < target) {
+            LockSupport.unpark(writer);
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            LockSupport.parkNanos(100_000);
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves the number of lines dropped because the ring was full.
+     *
+     * @return Long representing the drop count.
+     */
+    public static long getDropCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Puts a line into the ring if its level is enabled.
+     *
+     * @param level Level of the line.
+     * @param pattern Text of the line.
+     * @param a0 The first argument.
+     * @param a1 The second argument.
+     * @param a2 The third argument.
+     * @param a3 The fourth argument.
+     * @param count Number of arguments.
+     */
+    private static void log(Level level, String pattern, Object a0, Object a1, Object a2, Object a3, int count) {
+        if (level.intValue() < threshold) {
+            return;
+        }
+        long pos = claim();
+        if (pos < 0) {
+            return;
+        }
+        Entry entry = ring.get(pos);
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.pattern = pattern;
+        entry.args[0] = a0;
+        entry.args[1] = a1;
+        entry.args[2] = a2;
+        entry.args[3] = a3;
+        entry.count = count;
+        publish(pos);
+    }
+
+    /**
+     * Puts a java.util.logging record into the ring.
+     *
+     * @param record The record.
+     */
+    private static void log(LogRecord record) {
+        long pos = claim();
+        if (pos < 0) {
+            return;
+        }
+        ring.get(pos).record = record;
+        publish(pos);
+    }
+
+    /**
+     * Claims a free slot of the ring.
+     *
+     * @return Long representing the slot's position, or -1 if the ring is
+     * full and the line was dropped.
+     */
+    private static long claim() {
+        long pos = ring.claim();
+        if (pos < 0) {
+            dropped.increment();
+        }
+        return pos;
+    }
+
+    /**
+     * Hands a filled slot to the writer thread.
+     *
+     * @param pos Position of the slot.
+     */
+    private static void publish(long pos) {
+        ring.publish(pos);
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Writes lines as they arrive, on the "agent-log" thread. Everything
+     * waiting is formatted into one buffer and written with a single call.
+     */
+    private static void drain() {
+        StringBuilder plain = new StringBuilder(4096);
+        SimpleFormatter formatter = new SimpleFormatter();
+        while (true) {
+            long pos = ring.take();
+            if (pos < 0) {
+                if (plain.length() > 0) {
+                    out.print(plain);
+                    out.flush();
+                    plain.setLength(0);
+                }
+                idle = true;
+                pos = ring.take(); // Recheck, or a line published meanwhile would wait.
+                if (pos < 0) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    idle = false;
+                    continue;
+                }
+                idle = false;
+            }
+            Entry entry = ring.get(pos);
+            if (entry.record != null) {
+                if (plain.length() > 0) { // Keep the order of lines.
+                    out.print(plain);
+                    out.flush();
+                    plain.setLength(0);
+                }
+                err.print(formatter.format(entry.record));
+            } else {
+                format(plain, entry);
+            }
+            entry.clear();
+            ring.free(pos);
+            written = pos + 1;
+        }
+    }
+
+    /**
+     * Formats a line, filling in its "{}" placeholders.
+     *
+     * @param text Buffer to append the line to.
+     * @param entry The line.
+     */
+    private static void format(StringBuilder text, Entry entry) {
+        if (KEY_VALUE) {
+            text.append("time=").append(Instant.ofEpochMilli(entry.time)).append(" level=").append(entry.level.getName())
+                    .append(" msg=\"");
+        }
+        int start = text.length();
+        String pattern = entry.pattern;
+        int from = 0;
+        for (int i = 0; i < entry.count; i++) {
+            int at = pattern.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            text.append(pattern, from, at).append(entry.args[i]);
+            from = at + 2;
+        }
+        text.append(pattern, from, pattern.length());
+        if (KEY_VALUE) {
+            for (int i = start; i < text.length(); i++) {
+                if (text.charAt(i) == '"' || text.charAt(i) == '\\') {
+                    text.insert(i++, '\\');
+                }
+            }
+            text.append('"');
+        }
+        text.append(System.lineSeparator());
+    }
+
+    /**
+     * Entry class that is one preallocated slot of the ring.
+     */
+    private static final class Entry {
+
+        private long time; // System.currentTimeMillis() when the line was logged.
+        private Level level; // Level of the line.
+        private String pattern; // Text with "{}" placeholders.
+        private final Object[] args = new Object[MAX_ARGS]; // Arguments for the placeholders.
+        private int count; // Number of arguments.
+        private LogRecord record; // Record from java.util.logging, or null.
+
+        /**
+         * Drops the references held by this slot.
+         */
+        void clear() {
+            pattern = null;
+            args[0] = null;
+            args[1] = null;
+            args[2] = null;
+            args[3] = null;
+            record = null;
+        }
+    }
+
+    /**
+     * RingHandler class that hands java.util.logging records to the writer
+     * thread. Formatting, including the record's parameters, happens there.
+     */
+    private static final class RingHandler extends Handler {
+
+        @Override
+        public void publish(LogRecord record) {
+            if (isLoggable(record)) {
+                log(record);
+            }
+        }
+
+        @Override
+        public void flush() {
+            AgentLog.flush(1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
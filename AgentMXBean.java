@@ -0,0 +1,72 @@
+/**
+ * AgentMXBean interface through which JMX clients read the metrics of one
+ * local agent. Registered as "agentsystem:type=Agent,class=...,id=...".
+ */
+public interface AgentMXBean {
+
+    /**
+     * @return String representing the agent's classname.
+     */
+    String getClassName();
+
+    /**
+     * @return String representing the agent's UID.
+     */
+    String getUID();
+
+    /**
+     * @return String representing the agent's lifecycle state.
+     */
+    String getState();
+
+    /**
+     * @return Integer representing the times the agent was restarted.
+     */
+    int getRestartCount();
+
+    /**
+     * @return Long representing the messages the agent sent.
+     */
+    long getMessagesSent();
+
+    /**
+     * @return Long representing the payload bytes the agent sent.
+     */
+    long getBytesSent();
+
+    /**
+     * @return Long representing the messages delivered to the agent.
+     */
+    long getMessagesReceived();
+
+    /**
+     * @return Long representing the payload bytes delivered to the agent.
+     */
+    long getBytesReceived();
+
+    /**
+     * @return Integer representing the messages waiting in the mailbox.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return Integer representing the messages the mailbox holds at most,
+     * the configured capacity rounded up to a power of two.
+     */
+    int getMailboxCapacity();
+
+    /**
+     * @return Long representing the messages the full mailbox dropped.
+     */
+    long getDropCount();
+
+    /**
+     * @return Long representing the messages the full mailbox rejected.
+     */
+    long getRejectCount();
+
+    /**
+     * @return Long representing the messages the closed mailbox turned away.
+     */
+    long getRefuseCount();
+}
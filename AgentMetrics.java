@@ -0,0 +1,123 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AgentMetrics class that counts the messages and payload bytes one agent
+ * sends and receives. Counters are striped LongAdders, so agents and the
+ * reactor thread update them without contending; queue depth and drops are
+ * read from the agent's mailbox when asked for.
+ */
+public class AgentMetrics implements AgentMXBean {
+
+    private final Agent agent; // Agent being measured.
+    private final LongAdder sent = new LongAdder(); // Messages sent.
+    private final LongAdder sentBytes = new LongAdder(); // Payload bytes sent.
+    private final LongAdder received = new LongAdder(); // Messages delivered to the mailbox.
+    private final LongAdder receivedBytes = new LongAdder(); // Payload bytes delivered to the mailbox.
+
+    /**
+     * Constructor for AgentMetrics.
+     *
+     * @param measured The agent to measure.
+     */
+    public AgentMetrics(Agent measured) {
+        agent = measured;
+    }
+
+    /**
+     * Counts a message sent by the agent.
+     *
+     * @param bytes Payload bytes of the message.
+     */
+    public void sent(int bytes) {
+        sent.increment();
+        sentBytes.add(bytes);
+    }
+
+    /**
+     * Counts a message delivered to the agent's mailbox.
+     *
+     * @param bytes Payload bytes of the message.
+     */
+    public void received(int bytes) {
+        received.increment();
+        receivedBytes.add(bytes);
+    }
+
+    @Override
+    public String getClassName() {
+        return agent.getClassName();
+    }
+
+    @Override
+    public String getUID() {
+        return agent.getUID();
+    }
+
+    @Override
+    public String getState() {
+        return agent.getState().name();
+    }
+
+    @Override
+    public int getRestartCount() {
+        return agent.getRestartCount();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return sent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return sentBytes.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return received.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return receivedBytes.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return agent.getMailbox().getDepth();
+    }
+
+    @Override
+    public int getMailboxCapacity() {
+        return agent.getMailbox().getCapacity();
+    }
+
+    @Override
+    public long getDropCount() {
+        return agent.getMailbox().getDropCount();
+    }
+
+    @Override
+    public long getRejectCount() {
+        return agent.getMailbox().getRejectCount();
+    }
+
+    @Override
+    public long getRefuseCount() {
+        return agent.getMailbox().getRefuseCount();
+    }
+
+    /**
+     * Renders the agent's metrics as one line of the text snapshot.
+     *
+     * @return String representing the metrics.
+     */
+    @Override
+    public String toString() {
+        return String.format("%s[id=%s] %s restarts=%d sent=%d/%dB received=%d/%dB depth=%d/%d dropped=%d rejected=%d"
+                + " refused=%d", getClassName(), getUID(), getState(), getRestartCount(), getMessagesSent(), getBytesSent(),
+                getMessagesReceived(), getBytesReceived(), getQueueDepth(), getMailboxCapacity(), getDropCount(),
+                getRejectCount(), getRefuseCount());
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * AgentRegistry class that holds the agents running in this AgentSystem,
+ * indexed by UID and by classname so that routing and local lookups take
+ * constant time. Agents may register and deregister from any thread while
+ * messages are being routed. Iterating over every agent, as broadcasts do,
+ * uses a snapshot array that is only rebuilt after the registry changed.
+ * Routing a received message looks its target up by the two halves of the
+ * UID in an open-addressing table, rebuilt the same way, so that no AgentId
+ * has to be created for it.
+ */
+public class AgentRegistry {
+
+    private static final Agent[] NONE = new Agent[0];
+
+    private final Map<AgentId, Agent> byUID = new ConcurrentHashMap<>(); // Agents by UID.
+    private final Map<String, CopyOnWriteArrayList<Agent>> byClass = new ConcurrentHashMap<>(); // Agents by classname.
+    private volatile Agent[] snapshot = NONE; // Every agent, or null after a change.
+    private volatile Agent[] table = NONE; // Agents by hash of their UID, linear probing, or null after a change.
+
+    /**
+     * Registers an agent.
+     *
+     * @param agent The agent to register.
+     * @return Boolean representing whether the agent was added, false if it
+     * was already registered.
+     */
+    public synchronized boolean register(Agent agent) {
+        if (byUID.putIfAbsent(agent.getId(), agent) != null) {
+            return false;
+        }
+        byClass.computeIfAbsent(agent.getClassName(), k -> new CopyOnWriteArrayList<>()).add(agent);
+        snapshot = null;
+        table = null;
+        return true;
+    }
+
+    /**
+     * Deregisters an agent.
+     *
+     * @param agent The agent to deregister.
+     * @return Boolean representing whether the agent was removed, false if it
+     * was not registered.
+     */
+    public synchronized boolean deregister(Agent agent) {
+        if (!byUID.remove(agent.getId(), agent)) {
+            return false;
+        }
+        List<Agent> agents = byClass.get(agent.getClassName());
+        if (agents != null) {
+            agents.remove(agent);
+            if (agents.isEmpty()) {
+                byClass.remove(agent.getClassName());
+            }
+        }
+        snapshot = null;
+        table = null;
+        return true;
+    }
+
+    /**
+     * Looks up a registered agent by UID.
+     *
+     * @param uid UID of the agent.
+     * @return Agent with that UID, or null if none is registered.
+     */
+    public Agent lookup(AgentId uid) {
+        return byUID.get(uid);
+    }
+
+    /**
+     * Looks up a registered agent by the halves of its UID, without creating
+     * an AgentId.
+     *
+     * @param most High half of the UID.
+     * @param least Low half of the UID.
+     * @return Agent with that UID, or null if none is registered.
+     */
+    public Agent lookup(long most, long least) {
+        Agent[] agents = table;
+        if (agents == null) {
+            agents = buildTable();
+        }
+        if (agents.length == 0) {
+            return null;
+        }
+        int mask = agents.length - 1;
+        for (int i = AgentId.hash(most, least) & mask; ; i = (i + 1) & mask) {
+            Agent agent = agents[i];
+            if (agent == null || agent.getId().matches(most, least)) {
+                return agent;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the lookup table after the registry changed. The table is at
+     * most half full, so every probe ends at an empty slot.
+     *
+     * @return Array of the agents by hash of their UID.
+     */
+    private synchronized Agent[] buildTable() {
+        Agent[] agents = table;
+        if (agents == null) {
+            agents = byUID.isEmpty() ? NONE : new Agent[Ring.roundToPowerOfTwo(byUID.size() * 2)];
+            int mask = agents.length - 1;
+            for (Agent agent : byUID.values()) {
+                int i = agent.getId().hashCode() & mask;
+                while (agents[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                agents[i] = agent;
+            }
+            table = agents;
+        }
+        return agents;
+    }
+
+    /**
+     * Looks up the registered agents of a class.
+     *
+     * @param className Classname of the agents.
+     * @return List of the agents, empty if there are none. The list is a
+     * snapshot that is safe to iterate while agents come and go.
+     */
+    public List<Agent> lookupAll(String className) {
+        List<Agent> agents = byClass.get(className);
+        return agents == null ? List.of() : agents;
+    }
+
+    /**
+     * Retrieves every registered agent.
+     *
+     * @return Array of the agents registered when it was built. It is shared
+     * between callers and must not be modified.
+     */
+    public Agent[] getAll() {
+        Agent[] all = snapshot;
+        if (all == null) {
+            synchronized (this) {
+                all = snapshot;
+                if (all == null) {
+                    all = byUID.values().toArray(NONE);
+                    snapshot = all;
+                }
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Retrieves the number of registered agents.
+     *
+     * @return Integer representing the number of agents.
+     */
+    public int size() {
+        return byUID.size();
+    }
+}
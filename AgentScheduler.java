@@ -0,0 +1,294 @@
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * AgentScheduler class that runs every scheduled agent concurrently, either on
+ * its own virtual thread (when the running JVM supports them) or on a platform
+ * thread pool, and supports joining, cancelling and timing out agents.
+ *
+ * Each agent runs under supervision: if its start method throws or returns
+ * false without the agent being asked to stop, the agent is restarted after a
+ * backoff that doubles with every consecutive failure. An agent that ran for
+ * longer than the largest backoff before failing starts over with the first
+ * backoff and a fresh restart budget.
+ *
+ * An agent is only held here while it is scheduled: once its supervision
+ * ends for good, or it is forgotten, the scheduler no longer refers to it,
+ * so agents started and stopped at runtime can be garbage collected.
+ */
+public class AgentScheduler {
+
+    public static final String MODE_PROPERTY = "agentsystem.scheduler"; // "virtual" or "platform".
+    public static final String POOL_SIZE_PROPERTY = "agentsystem.poolSize"; // Platform pool bound, 0 = unbounded.
+    public static final String MAX_RESTARTS_PROPERTY = "agentsystem.supervisor.maxRestarts"; // Consecutive restarts.
+    public static final String BACKOFF_PROPERTY = "agentsystem.supervisor.backoffMs"; // First restart delay.
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30); // Longest restart delay.
+
+    private final ExecutorService executor; // Executor that runs the agents.
+    private final Map<Agent, Future<Boolean>> running = new ConcurrentHashMap<>(); // Agents still scheduled.
+    private final int maxRestarts; // Consecutive failures after which an agent is left FAILED.
+    private final long backoffNanos; // Delay before the first restart.
+
+    /**
+     * Constructor for AgentScheduler configured from the "agentsystem.scheduler",
+     * "agentsystem.poolSize" and "agentsystem.supervisor.*" system properties.
+     */
+    public AgentScheduler() {
+        this(!"platform".equalsIgnoreCase(System.getProperty(MODE_PROPERTY, "virtual")),
+                Integer.getInteger(POOL_SIZE_PROPERTY, 0), Integer.getInteger(MAX_RESTARTS_PROPERTY, 5),
+                Long.getLong(BACKOFF_PROPERTY, 100));
+    }
+
+    /**
+     * Constructor for AgentScheduler.
+     *
+     * @param preferVirtual Whether each agent should run on its own virtual
+     * thread if the JVM supports it.
+     * @param poolSize Maximum number of platform threads used when virtual
+     * threads are not used. 0 gives every agent its own platform thread.
+     */
+    public AgentScheduler(boolean preferVirtual, int poolSize) {
+        this(preferVirtual, poolSize, 0, 0);
+    }
+
+    /**
+     * Constructor for AgentScheduler with supervision.
+     *
+     * @param preferVirtual Whether each agent should run on its own virtual
+     * thread if the JVM supports it.
+     * @param poolSize Maximum number of platform threads used when virtual
+     * threads are not used. 0 gives every agent its own platform thread.
+     * @param restarts Consecutive failures an agent is restarted after, 0 for
+     * none.
+     * @param backoffMs Delay in milliseconds before the first restart.
+     */
+    public AgentScheduler(boolean preferVirtual, int poolSize, int restarts, long backoffMs) {
+        maxRestarts = restarts;
+        backoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, backoffMs));
+        ExecutorService virtual = preferVirtual ? newVirtualExecutor() : null;
+        if (virtual != null) {
+            executor = virtual;
+        } else if (poolSize > 0) {
+            executor = Executors.newFixedThreadPool(poolSize, agentThreadFactory());
+        } else {
+            executor = Executors.newCachedThreadPool(agentThreadFactory());
+        }
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor if this JVM provides one.
+     *
+     * @return ExecutorService running each task on a virtual thread, or null
+     * if virtual threads are unavailable.
+     */
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            // Virtual threads are missing (or still a preview feature) on this JVM.
+            Logger.getLogger(AgentScheduler.class.getName()).log(Level.CONFIG,
+                    "Virtual threads unavailable, using platform threads");
+        }
+        return null;
+    }
+
+    /**
+     * Creates the factory for the daemon platform threads that run agents.
+     *
+     * @return ThreadFactory naming its threads "agent-N".
+     */
+    private static ThreadFactory agentThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "agent-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Schedules an agent so that its start method runs concurrently with all
+     * other scheduled agents, restarted if it fails.
+     *
+     * @param agent The agent to run.
+     * @return Future representing the result of the agent's last run.
+     */
+    public Future<Boolean> schedule(Agent agent) {
+        FutureTask<Boolean> task = new FutureTask<>(() -> supervise(agent)) {
+            @Override
+            protected void done() {
+                running.remove(agent, this); // Supervision ended, by completing or being cancelled.
+            }
+        };
+        running.put(agent, task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            running.remove(agent, task);
+            throw ex;
+        }
+        return task;
+    }
+
+    /**
+     * Stops keeping track of an agent, without cancelling it, e.g. once it
+     * has been stopped and deregistered. It is no longer joined or cancelled.
+     *
+     * @param agent The agent to forget.
+     */
+    public void forget(Agent agent) {
+        running.remove(agent);
+    }
+
+    /**
+     * Runs an agent until it completes, is stopped, or has failed more often
+     * in a row than it may be restarted.
+     *
+     * @param agent The agent to run.
+     * @return Boolean representing the result of the agent's last run.
+     */
+    private boolean supervise(Agent agent) {
+        long backoff = backoffNanos;
+        int failures = 0;
+        while (true) {
+            boolean completed = false;
+            long started = System.nanoTime();
+            if (agent.running()) {
+                try {
+                    agent.init();
+                    completed = agent.start();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(AgentScheduler.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            if (agent.finished(completed) != Agent.State.FAILED || Thread.currentThread().isInterrupted()) {
+                return completed;
+            }
+            if (System.nanoTime() - started > MAX_BACKOFF_NANOS) {
+                backoff = backoffNanos; // Ran fine for a long while: treat this as a new failure.
+                failures = 0;
+            }
+            if (++failures > maxRestarts) {
+                Logger.getLogger(AgentScheduler.class.getName()).log(Level.SEVERE,
+                        "{0}[id={1}] failed {2} times, giving up", new Object[]{agent.getClassName(), agent.getUID(), failures});
+                return false;
+            }
+            Logger.getLogger(AgentScheduler.class.getName()).log(Level.WARNING, "{0}[id={1}] failed, restarting in {2} ms",
+                    new Object[]{agent.getClassName(), agent.getUID(), String.valueOf(TimeUnit.NANOSECONDS.toMillis(backoff))});
+            try {
+                agent.awaitStop(backoff); // A stop during the backoff ends supervision on the next turn.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt(); // Agent was cancelled.
+                return false;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+        }
+    }
+
+    /**
+     * Waits for an agent to complete.
+     *
+     * @param agent The agent to wait for.
+     * @return Boolean representing the result of the agent's start method, or
+     * false if the agent failed or was cancelled.
+     */
+    public boolean join(Agent agent) {
+        return join(agent, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits at most the given time for an agent to complete.
+     *
+     * @param agent The agent to wait for.
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return Boolean representing the result of the agent's start method, or
+     * false if the agent failed, was cancelled or did not finish in time. An
+     * agent no longer scheduled has succeeded if it ended STOPPED.
+     */
+    public boolean join(Agent agent, long timeout, TimeUnit unit) {
+        Future<Boolean> future = running.get(agent);
+        if (future == null) {
+            return agent.getState() == Agent.State.STOPPED; // Already finished, or never scheduled.
+        }
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException ex) {
+            Logger.getLogger(AgentScheduler.class.getName()).log(Level.WARNING,
+                    "{0}[id={1}] did not finish in time", new Object[]{agent.getClassName(), agent.getUID()});
+        } catch (CancellationException ex) {
+            Logger.getLogger(AgentScheduler.class.getName()).log(Level.INFO,
+                    "{0}[id={1}] was cancelled", new Object[]{agent.getClassName(), agent.getUID()});
+        } catch (ExecutionException ex) {
+            Logger.getLogger(AgentScheduler.class.getName()).log(Level.SEVERE, null, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Waits for every scheduled agent to complete.
+     *
+     * @return Boolean representing whether every agent completed successfully.
+     */
+    public boolean joinAll() {
+        return joinAll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits at most the given time, shared by all agents, for every agent
+     * still scheduled to complete.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return Boolean representing whether every agent completed successfully
+     * within the timeout.
+     */
+    public boolean joinAll(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        boolean allSucceeded = true;
+        for (Agent agent : running.keySet()) {
+            long remaining = Math.max(0, deadline - System.nanoTime());
+            allSucceeded &= join(agent, remaining, TimeUnit.NANOSECONDS);
+        }
+        return allSucceeded;
+    }
+
+    /**
+     * Cancels an agent by interrupting the thread it is running on.
+     *
+     * @param agent The agent to cancel.
+     * @return Boolean representing whether the agent was cancelled.
+     */
+    public boolean cancel(Agent agent) {
+        Future<Boolean> future = running.get(agent);
+        return future != null && future.cancel(true);
+    }
+
+    /**
+     * Cancels every agent that is still running and stops accepting new ones.
+     */
+    public void shutdown() {
+        for (Future<Boolean> future : running.values()) {
+            future.cancel(true);
+        }
+        executor.shutdownNow();
+    }
+}
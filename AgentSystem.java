@@ -1,216 +1,1102 @@
-
-import java.io.IOException;
-import java.util.ArrayList;
-import java.lang.Class;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.Inet4Address;
-import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-/**
- * AgentSystem class that starts one or more agents based on a given list of
- * classnames, maintains a list of local agents and their classes, finds remote
- * agents, and can send messages to another agent.
- */
-public class AgentSystem {
-
-    private static ArrayList<Agent> localAgents = new ArrayList<>(); // Local agents.
-
-    private static final int PORT = 9989; // Port to send messages on.
-
-    /**
-     * Main method that instantiates the local agents based on the command line
-     * arguments and starts the given agents.
-     *
-     * @param args Command line arguments
-     * @throws UnknownHostException
-     */
-    public static void main(String[] args) throws UnknownHostException {
-        instantiateLocalAgents(args);
-        startAgents();
-    }
-
-
-    /**
-     * Adds command line arguments to the localAgents list.
-     *
-     * @param args String array of command line arguments.
-     */
-    private static void instantiateLocalAgents(String[] args) {
-        Agent temp;
-        for (int i = 0; i < args.length; i++) {
-            try {
-                String className = args[i];
-                Class tempClass = Class.forName(className);
-                Object thisAgent = tempClass.newInstance();
-                try {
-                    // Check if this is of type Agent before casting it to an Agent class.
-                    if(thisAgent instanceof Agent) {
-                        temp = (Agent) tempClass.newInstance();
-                        localAgents.add(temp);
-                    }
-                } catch (InstantiationException ex) {
-                    Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (IllegalAccessException ex) {
-                    Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            } catch (ClassNotFoundException ex) {
-                Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (InstantiationException ex) {
-                Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (IllegalAccessException ex) {
-                Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-    }
-
-    /**
-     * Add Agents to the localAgents list.
-     *
-     * @param args Agent array of agents to add.
-     */
-    public static void addLocalAgents(Agent[] args) {
-        for (int i = 0; i < args.length; i++) {
-            localAgents.add(args[i]);
-        }
-    }
-
-    /**
-     * Remove Agents to the localAgents list.
-     *
-     * @param args Agent array of agents to remove.
-     */
-    private static void removeLocalAgents(Agent[] args) {
-        for (int i = 0; i < args.length; i++) {
-            localAgents.remove(args[i]);
-        }
-    }
-
-    /**
-     * Starts all local agents.
-     */
-    private static void startAgents() {
-        for (Agent ag : localAgents) {
-            ag.start();
-        }
-    }
-
-    /**
-     * Retrieves the port number to send messages on.
-     *
-     * @return Integer representing the port number.
-     */
-    public static int getPort() {
-        return PORT;
-    }
-
-    /**
-     * Finds this machine's IV4 broadcast IP address (for Ubuntu only).
-     *
-     * @return
-     */
-    private static InetAddress getBroadcastLAN() {
-        try {
-            // Find this machine's IV4 IP address (for Ubuntu).
-            Enumeration<NetworkInterface> nets = NetworkInterface.getNetworkInterfaces();
-            int counterOuter = 1;
-            int countInner = 0;
-            InetAddress myipAddr = InetAddress.getLocalHost();
-            for (NetworkInterface netint : Collections.list(nets)) {
-                // For Ubuntu, the regular (not loopback) IP is the first
-                // NetworkInterface listed.
-                if (counterOuter == 1) {
-                    Enumeration<InetAddress> inetAddresses = netint.getInetAddresses();
-                    InetAddress temp = myipAddr;
-                    for (InetAddress inetAddress : Collections.list(inetAddresses)) {
-                        if(inetAddress instanceof Inet4Address) {
-                            myipAddr = inetAddress;
-                            break;
-                        }
-                    }
-                }
-                counterOuter++;
-            }
-
-            // Convert this machine's IP address to the broadcast IP address.
-            String add = myipAddr.getHostAddress();
-            String[] splitAdd = add.split("\\."); // Split by period.
-            String broadcastInt = "255";
-            splitAdd[splitAdd.length - 1] = broadcastInt;
-            StringBuilder bldr = new StringBuilder();
-            for (String s : splitAdd) {
-                bldr.append(s);
-                bldr.append(".");
-            }
-            bldr.deleteCharAt(bldr.length() - 1);
-
-            // Broadcast LAN.
-            InetAddress LAN = InetAddress.getByName(bldr.toString());
-	    return LAN;
-        } catch (UnknownHostException ex) {
-            Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (SocketException ex) {
-            Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return null; // Error occurred.
-    }
-
-    /**
-     * Finds a remote agent by broadcasting a message and waiting for a
-     * response.
-     *
-     * @param outMessage The broadcast message to send.
-     * @return
-     */
-    public static DatagramPacket findAgent(String outMessage) {
-        try {
-            // Get the local address network's broadcast IP.
-            InetAddress LAN = getBroadcastLAN();
-
-            // Try to send a broadcast message that all currently running
-            // agents should receive.
-            DatagramSocket socket = new DatagramSocket();
-            socket.setBroadcast(true);
-            byte[] buf = new byte[1000];
-            DatagramPacket dgPacket = new DatagramPacket(buf, buf.length);
-            buf = outMessage.getBytes();
-            DatagramPacket out = new DatagramPacket(buf, buf.length, LAN, PORT);
-            sendMsg(socket, outMessage, LAN, PORT);
-
-            // Wait for a response to the broadcast message.
-            socket.receive(dgPacket);
-            socket.close();
-            return dgPacket; // Return the DatagramPacket of the agent found.
-        } catch (IOException ex) {
-            Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return null;
-    }
-
-    /**
-     * Sends a message given the socket, target address, and target port.
-     *
-     * @param socket The socket to send the message through.
-     * @param message The message to send.
-     * @param address The IP address to send the message to.
-     * @param targetPort The port to send the message through.
-     */
-    public static void sendMsg(DatagramSocket socket, String message, InetAddress address, int targetPort) {
-        try {
-            byte[] buf = message.getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(buf, buf.length, address, targetPort);
-            socket.send(sendPacket);
-        } catch (SocketException ex) {
-            Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
-        }
-    }
-}
+
+import java.io.IOException;
+import java.lang.Class;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * AgentSystem class that starts one or more agents based on a given list of
+ * classnames, maintains a list of local agents and their classes, finds remote
+ * agents, and can send messages to another agent. All local agents share a
+ * single Dispatcher that sends and receives every message on one port.
+ */
+public class AgentSystem {
+
+    private static final AgentRegistry localAgents = new AgentRegistry(); // Local agents by UID and classname.
+
+    private static final int PORT = 9989; // Port to send messages on.
+
+    private static final AgentScheduler scheduler = new AgentScheduler(); // Runs the local agents concurrently.
+
+    private static Dispatcher dispatcher; // Shared channel and reactor thread for all local agents.
+
+    private static Batcher batcher; // Coalesces small outgoing messages, or null if batching is off.
+
+    private static ReliableChannel reliable; // Acknowledges and retransmits messages, or null in text mode.
+
+    private static boolean reliableSend; // Whether messages to other agents are sent reliably.
+
+    private static final AgentDirectory directory = new AgentDirectory(
+            Long.getLong(AgentDirectory.TTL_PROPERTY, 30000)); // Agents announced on the network.
+
+    private static final BufferPool sendBuffers = new BufferPool(MessageCodec.MAX_FRAME); // Outgoing frames.
+
+    private static final BroadcastAddresses broadcastAddresses = new BroadcastAddresses(PORT,
+            Long.getLong(BroadcastAddresses.REFRESH_PROPERTY, 10000)); // Where broadcasts are sent.
+
+    private static final Reassembler reassembler = new Reassembler(
+            Long.getLong(Reassembler.TIMEOUT_PROPERTY, 10000),
+            Long.getLong(Reassembler.MAX_BYTES_PROPERTY, 64L << 20)); // Puts fragmented messages back together.
+
+    private static final Metrics metrics = new Metrics(localAgents, reassembler,
+            Boolean.parseBoolean(System.getProperty(Metrics.JMX_PROPERTY, "true"))); // Counters, histograms and MXBeans.
+
+    private static final Journal journal = Journal.open(); // Every message sent and received, or null.
+
+    private static final Path snapshotFile = snapshotFile(); // Snapshot restored at startup and saved on shutdown, or null.
+    private static FileChannel snapshotLock; // Lock on the snapshot while this AgentSystem owns it, or null.
+
+    private static final int FRAGMENT_MTU = Integer.getInteger(Reassembler.MTU_PROPERTY, 1472); // Largest fragment datagram.
+
+    private static final AtomicInteger fragmentIds = new AtomicInteger(); // ID of the last fragmented message.
+
+    private static final Topics topics = new Topics(); // Subscriptions of local agents and remote AgentSystems.
+
+    private static InetSocketAddress multicastGroup; // Where publications are multicast, or null.
+
+    private static InetSocketAddress localAddress; // Source of messages delivered without the network.
+
+    public static final String LOCAL_DELIVERY_PROPERTY = "agentsystem.localDelivery"; // Whether local agents bypass the network.
+    private static final boolean LOCAL_DELIVERY = Boolean.parseBoolean(System.getProperty(LOCAL_DELIVERY_PROPERTY, "true"));
+
+    public static final String SHUTDOWN_TIMEOUT_PROPERTY = "agentsystem.shutdownTimeoutMs"; // Time to drain on shutdown.
+    private static final long SHUTDOWN_TIMEOUT_MS = Long.getLong(SHUTDOWN_TIMEOUT_PROPERTY, 5000);
+
+    private static final AtomicBoolean shutDown = new AtomicBoolean(); // Whether shutdown has begun.
+
+    private static final Set<Discovery> discoveries = ConcurrentHashMap.newKeySet(); // Discoveries collecting answers.
+    private static final AtomicLong discoveryNonces = new AtomicLong(); // Nonce of the last timed discovery broadcast.
+
+    public static final String DISCOVERY_RETRY_PROPERTY = "agentsystem.discoveryRetryMs"; // First retransmit delay.
+    private static final long DISCOVERY_RETRY_MS = Long.getLong(DISCOVERY_RETRY_PROPERTY, 100);
+    private static final long MAX_DISCOVERY_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(5); // Longest retransmit delay.
+
+    /**
+     * Main method that instantiates the local agents based on the command line
+     * arguments and starts the given agents. The AgentSystem shuts down
+     * gracefully once every agent has finished, or when the JVM is asked to
+     * exit.
+     *
+     * @param args Command line arguments
+     * @throws UnknownHostException
+     */
+    public static void main(String[] args) throws UnknownHostException {
+        AgentLog.install();
+        instantiateLocalAgents(args, restoreSnapshot());
+        getDispatcher();
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> shutdown(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS), "agent-shutdown"));
+        startAgents();
+        scheduler.joinAll();
+        shutdown(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shuts this AgentSystem down gracefully: every agent is asked to stop and
+     * given the timeout to drain its mailbox and return, then outgoing
+     * messages are flushed and agents still running are cancelled. Only the
+     * first call has any effect.
+     *
+     * @param timeout Maximum time to wait for the agents, shared by all.
+     * @param unit Unit of the timeout.
+     * @return Boolean representing whether every agent stopped in time.
+     */
+    public static boolean shutdown(long timeout, TimeUnit unit) {
+        if (!shutDown.compareAndSet(false, true)) {
+            return false;
+        }
+        for (Agent ag : localAgents.getAll()) {
+            ag.stop();
+        }
+        boolean drained = scheduler.joinAll(timeout, unit);
+        if (snapshotLock != null) {
+            saveSnapshot(snapshotFile);
+        }
+        if (batcher != null) {
+            batcher.close(); // Send anything still waiting in a batch.
+        }
+        if (reliableSend) {
+            reliable.awaitAcked(2, TimeUnit.SECONDS); // Let the last messages be retransmitted if lost.
+        }
+        scheduler.shutdown();
+        metrics.close();
+        if (journal != null) {
+            journal.close();
+        }
+        AgentLog.flush(1, TimeUnit.SECONDS);
+        return drained;
+    }
+
+
+    /**
+     * Takes ownership of the snapshot configured by
+     * "agentsystem.snapshot.file", then reads it, continues the IDs of the run
+     * that saved it and puts its peers and remote subscriptions back. A
+     * missing or unreadable snapshot means a cold start; a snapshot owned by
+     * another running AgentSystem is neither restored nor saved.
+     *
+     * @return Snapshot to restore the agents from, or null for none.
+     */
+    private static Snapshot restoreSnapshot() {
+        if (snapshotFile == null) {
+            return null;
+        }
+        try {
+            snapshotLock = Snapshot.lock(snapshotFile);
+            if (snapshotLock == null) {
+                AgentLog.log(Level.WARNING, "AgentSystem: {} is in use by another AgentSystem, starting without it", snapshotFile, null);
+                return null;
+            }
+            if (!Files.exists(snapshotFile)) {
+                return null;
+            }
+            Snapshot snapshot = Snapshot.read(snapshotFile);
+            if (!snapshot.resumeIds(snapshotFile)) {
+                AgentLog.log(Level.WARNING, "AgentSystem: IDs of {} not continued, restoring its agents with new UIDs", snapshotFile, null);
+            }
+            int peers = snapshot.restorePeers(directory);
+            int subscriptions = snapshot.restoreSubscriptions(topics);
+            AgentLog.info("AgentSystem: Restored {} peers and {} subscriptions from {}", peers, subscriptions, snapshotFile);
+            return snapshot;
+        } catch (IOException ex) {
+            Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Saves a snapshot of this AgentSystem: its ID prefix, the UIDs and state
+     * of its agents and the peers in its directory. Agents that are still
+     * running are saved without their state.
+     *
+     * @param file File to write the snapshot to.
+     * @return Boolean representing whether the snapshot was written.
+     */
+    public static boolean saveSnapshot(Path file) {
+        try {
+            Snapshot.write(file, localAgents.getAll(), directory, topics);
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Retrieves the snapshot file named by "agentsystem.snapshot.file".
+     *
+     * @return Path of the snapshot, or null if snapshots are off.
+     */
+    private static Path snapshotFile() {
+        String file = System.getProperty(Snapshot.FILE_PROPERTY);
+        return file == null || file.isEmpty() ? null : Paths.get(file);
+    }
+
+    /**
+     * Registers an agent for each classname on the command line, restoring
+     * each from the snapshot if there is one.
+     *
+     * @param args String array of command line arguments.
+     * @param snapshot Snapshot to restore the agents from, or null.
+     */
+    private static void instantiateLocalAgents(String[] args, Snapshot snapshot) {
+        Agent temp;
+        for (int i = 0; i < args.length; i++) {
+            try {
+                String className = args[i];
+                Class tempClass = Class.forName(className);
+                Object thisAgent = tempClass.newInstance();
+                try {
+                    // Check if this is of type Agent before casting it to an Agent class.
+                    if(thisAgent instanceof Agent) {
+                        temp = (Agent) tempClass.newInstance();
+                        if (snapshot != null) {
+                            snapshot.restore(temp);
+                        }
+                        register(temp);
+                    }
+                } catch (InstantiationException ex) {
+                    Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
+                } catch (IllegalAccessException ex) {
+                    Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            } catch (ClassNotFoundException ex) {
+                Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (InstantiationException ex) {
+                Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (IllegalAccessException ex) {
+                Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Registers local agents, so that messages are routed to them. Safe to
+     * call from any thread while other agents run.
+     *
+     * @param args Agent array of agents to add.
+     */
+    public static void addLocalAgents(Agent[] args) {
+        for (int i = 0; i < args.length; i++) {
+            register(args[i]);
+        }
+    }
+
+    /**
+     * Deregisters local agents, so that messages are no longer routed to
+     * them. Safe to call from any thread while other agents run.
+     *
+     * @param args Agent array of agents to remove.
+     */
+    public static void removeLocalAgents(Agent[] args) {
+        for (int i = 0; i < args.length; i++) {
+            deregister(args[i]);
+        }
+    }
+
+    /**
+     * Starts an agent while the AgentSystem runs: it is registered, announced
+     * and scheduled. An agent that was stopped or gave up after failing is
+     * started afresh, with the messages left in its mailbox.
+     *
+     * @param ag The agent to start.
+     */
+    public static void startAgent(Agent ag) {
+        ag.reset();
+        register(ag);
+        announce(ag);
+        scheduler.schedule(ag);
+    }
+
+    /**
+     * Stops an agent while the AgentSystem runs. The agent drains its mailbox
+     * and returns; if it has not done so within the timeout, it is cancelled.
+     * Either way it is deregistered.
+     *
+     * @param ag The agent to stop.
+     * @param timeout Maximum time to wait for the agent.
+     * @param unit Unit of the timeout.
+     * @return Boolean representing whether the agent stopped in time.
+     */
+    public static boolean stopAgent(Agent ag, long timeout, TimeUnit unit) {
+        ag.stop();
+        scheduler.join(ag, timeout, unit);
+        boolean stopped = ag.getState() == Agent.State.STOPPED;
+        if (!stopped) {
+            scheduler.cancel(ag);
+        }
+        deregister(ag);
+        return stopped;
+    }
+
+    /**
+     * Adds an agent to the registry and exposes its metrics.
+     *
+     * @param ag The agent to add.
+     */
+    private static void register(Agent ag) {
+        if (localAgents.register(ag)) {
+            metrics.register(ag);
+        }
+    }
+
+    /**
+     * Removes an agent from the registry and the scheduler, withdraws its
+     * metrics and unsubscribes it from every topic, telling other
+     * AgentSystems about the topics it was the last local subscriber of.
+     *
+     * @param ag The agent to remove.
+     */
+    private static void deregister(Agent ag) {
+        scheduler.forget(ag);
+        if (localAgents.deregister(ag)) {
+            metrics.unregister(ag);
+            for (String topic : topics.unsubscribeAll(ag)) {
+                withdraw(ag, topic);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the journal of every message sent and received, e.g. for an
+     * agent to replay its messages at startup.
+     *
+     * @return Journal configured by "agentsystem.journal.dir", or null if
+     * journaling is off.
+     */
+    public static Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Retrieves the metrics of this AgentSystem, which are also exposed
+     * through JMX.
+     *
+     * @return Metrics of the system and its agents.
+     */
+    public static Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Retrieves the registry of local agents.
+     *
+     * @return AgentRegistry of the agents running in this AgentSystem.
+     */
+    public static AgentRegistry getLocalAgents() {
+        return localAgents;
+    }
+
+    /**
+     * Starts all local agents concurrently on the agent scheduler.
+     */
+    private static void startAgents() {
+        for (Agent ag : localAgents.getAll()) {
+            announce(ag);
+            scheduler.schedule(ag);
+        }
+    }
+
+    /**
+     * Broadcasts an announcement of a local agent so that other AgentSystems
+     * can add it to their directories without having to look for it.
+     *
+     * @param ag The agent to announce.
+     */
+    private static void announce(Agent ag) {
+        if (!MessageCodec.isTextMode()) { // Older AgentSystems do not expect announcements.
+            broadcast(ag, MessageType.ANNOUNCE, ag.getClassName());
+        }
+    }
+
+    /**
+     * Retrieves the scheduler that runs the local agents.
+     *
+     * @return AgentScheduler used to join, cancel or time out local agents.
+     */
+    public static AgentScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Retrieves the port number to send messages on.
+     *
+     * @return Integer representing the port number.
+     */
+    public static int getPort() {
+        return PORT;
+    }
+
+    /**
+     * Retrieves the broadcast addresses of this machine's network interfaces.
+     *
+     * @return List of broadcast addresses and ports that reach every agent on
+     * the local networks.
+     */
+    public static List<InetSocketAddress> getBroadcastAddresses() {
+        return broadcastAddresses.get();
+    }
+
+    /**
+     * Retrieves the dispatcher shared by all local agents, starting it on first
+     * use.
+     *
+     * @return Dispatcher that sends and receives messages on this system's port.
+     */
+    public static synchronized Dispatcher getDispatcher() {
+        if (dispatcher == null) {
+            try {
+                dispatcher = new Dispatcher(PORT);
+                double lossRate = Double.parseDouble(System.getProperty(LossSimulator.RATE_PROPERTY, "0"));
+                if (lossRate > 0) {
+                    dispatcher.setLossSimulator(new LossSimulator(lossRate));
+                }
+                if (!MessageCodec.isTextMode()) {
+                    if (Boolean.getBoolean(Batcher.ENABLED_PROPERTY)) {
+                        batcher = new Batcher(dispatcher, Integer.getInteger(Batcher.MTU_PROPERTY, 1472),
+                                Long.getLong(Batcher.DELAY_PROPERTY, 50), Long.getLong(AgentDirectory.TTL_PROPERTY, 30000),
+                                TimeUnit.MILLISECONDS);
+                    }
+                    // Envelopes from reliable senders are always answered; sending reliably is optional.
+                    reliable = new ReliableChannel(dispatcher, batcher, Integer.getInteger(ReliableChannel.WINDOW_PROPERTY, 256),
+                            Long.getLong(AgentDirectory.TTL_PROPERTY, 30000), TimeUnit.MILLISECONDS);
+                    reliableSend = Boolean.getBoolean(ReliableChannel.ENABLED_PROPERTY);
+                    dispatcher.setReliableChannel(reliable);
+                    String group = System.getProperty(Topics.MULTICAST_PROPERTY);
+                    if (group != null && dispatcher.joinGroup(InetAddress.getByName(group))) {
+                        multicastGroup = new InetSocketAddress(group, PORT);
+                    }
+                }
+                localAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), dispatcher.getLocalPort());
+                dispatcher.start();
+                metrics.start(dispatcher, reliable, Long.getLong(Metrics.INTERVAL_PROPERTY, 0));
+            } catch (IOException ex) {
+                Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Retrieves the directory of agents announced on the network.
+     *
+     * @return AgentDirectory of known agents.
+     */
+    public static AgentDirectory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Routes a received message to the inbox of its target agent, or to every
+     * local agent except the sender if the message is a broadcast.
+     * Announcements are recorded in the directory, subscriptions in the topic
+     * table, and publications go to the topic's local subscribers instead.
+     *
+     * @param msg The message to route.
+     */
+    static void route(Message msg) {
+        switch (msg.getType()) {
+            case FRAGMENT:
+                Message whole = reassembler.add(msg, System.nanoTime());
+                if (whole != null) {
+                    route(whole);
+                }
+                return;
+            case ANNOUNCE:
+                AgentDirectory.Entry known = directory.lookup(msg.getSenderUID());
+                directory.record(msg.getSenderUID(), Discovery.getClassName(msg.getText()), msg.getSource());
+                long now = System.nanoTime();
+                for (Discovery discovery : discoveries) {
+                    discovery.answered(msg, now);
+                }
+                if ((known == null || !known.getAddress().equals(msg.getSource())) && !msg.isFromLocal()) {
+                    sendSubscriptions(msg.getSource()); // A new or restarted AgentSystem has not heard our subscriptions.
+                }
+                return;
+            case SUBSCRIBE:
+                if (!msg.isFromLocal()) {
+                    topics.addRemote(msg.getText(), msg.getSource());
+                }
+                return;
+            case UNSUBSCRIBE:
+                topics.removeRemote(msg.getText(), msg.getSource());
+                return;
+            case PUBLISH:
+                String topic = Topics.getTopic(msg);
+                if (topic != null && !msg.isFromLocal()) { // Our own multicast comes back to us.
+                    journalReceived(msg);
+                    for (Agent ag : topics.getSubscribers(topic)) {
+                        deliverTo(ag, msg);
+                    }
+                }
+                return;
+            default:
+                break;
+        }
+        journalReceived(msg);
+        if (!msg.isBroadcast()) {
+            Agent target = localAgents.lookup(msg.getTargetMost(), msg.getTargetLeast());
+            if (target != null) {
+                deliverTo(target, msg);
+            }
+            return;
+        }
+        for (Agent ag : localAgents.getAll()) {
+            if (!msg.isFrom(ag.getId())) {
+                deliverTo(ag, msg);
+            }
+        }
+    }
+
+    /**
+     * Appends a message received from another AgentSystem to the journal, if
+     * there is one. Messages between local agents were journaled when sent.
+     *
+     * @param msg The message.
+     */
+    private static void journalReceived(Message msg) {
+        if (journal != null && !msg.isFromLocal()) {
+            journal.append(Journal.RECEIVED, msg.getType(), msg.getSenderUID(), msg.getTargetUID(), msg.getPayloadBuffer());
+        }
+    }
+
+    /**
+     * Puts a message into a local agent's mailbox. If the mailbox is full and
+     * its policy is backpressure, the sender is told.
+     *
+     * @param ag The agent to deliver to.
+     * @param msg The message.
+     */
+    private static void deliverTo(Agent ag, Message msg) {
+        msg.retain(); // The agent holds the message until it releases it.
+        if (ag.deliver(msg)) {
+            ag.getMetrics().received(msg.getPayloadLength());
+        } else {
+            msg.release();
+            if (ag.getMailbox().getPolicy() == Mailbox.OverflowPolicy.BACKPRESSURE) {
+                signalBusy(ag, msg);
+            }
+        }
+    }
+
+    /**
+     * Tells the sender of a message that the target's mailbox was full and
+     * rejected it, so that the sender can slow down. Busy replies are never
+     * answered in turn, and the text format has no way to carry them.
+     *
+     * @param target The agent whose mailbox rejected the message.
+     * @param msg The rejected message.
+     */
+    private static void signalBusy(Agent target, Message msg) {
+        if (msg.getType() == MessageType.BUSY || msg.getSource() == null || MessageCodec.isTextMode()
+                || msg.getSenderUID().isBroadcast()) {
+            return;
+        }
+        if (isLocalTarget(msg.getSenderUID())) {
+            deliverLocally(target, MessageType.BUSY, msg.getSenderUID(), new byte[] {msg.getType().code()});
+            return;
+        }
+        ByteBuffer frame = leaseMsg(target, MessageType.BUSY, msg.getSenderUID());
+        frame.put(msg.getType().code());
+        sendLeased(target, frame, msg.getSource());
+    }
+
+    /**
+     * Subscribes a local agent to a topic, so that it receives a PUBLISH
+     * message for everything published on the topic by other agents. The
+     * topic's first local subscriber is broadcast to other AgentSystems, and
+     * also sent to every AgentSystem in the directory, which after a warm
+     * restart holds peers that will not announce themselves again.
+     *
+     * @param agent The subscribing agent.
+     * @param topic The topic.
+     */
+    public static void subscribe(Agent agent, String topic) {
+        if (topics.subscribe(agent, topic) && !MessageCodec.isTextMode()) {
+            broadcast(agent, MessageType.SUBSCRIBE, topic);
+            sendToPeers(agent, MessageType.SUBSCRIBE, topic);
+        }
+    }
+
+    /**
+     * Unsubscribes a local agent from a topic. Once the topic has no local
+     * subscriber left, other AgentSystems stop sending it here.
+     *
+     * @param agent The unsubscribing agent.
+     * @param topic The topic.
+     */
+    public static void unsubscribe(Agent agent, String topic) {
+        if (topics.unsubscribe(agent, topic)) {
+            withdraw(agent, topic);
+        }
+    }
+
+    /**
+     * Tells other AgentSystems that this one has no subscriber to a topic
+     * left. The withdrawal is broadcast, and also sent to every AgentSystem in
+     * the directory, since broadcasts only reach those on port 9989 while
+     * subscriptions are sent to every AgentSystem that announces itself.
+     *
+     * @param agent The agent that unsubscribed last.
+     * @param topic The topic.
+     */
+    private static void withdraw(Agent agent, String topic) {
+        if (MessageCodec.isTextMode()) {
+            return;
+        }
+        broadcast(agent, MessageType.UNSUBSCRIBE, topic);
+        sendToPeers(agent, MessageType.UNSUBSCRIBE, topic);
+    }
+
+    /**
+     * Sends a topic message once to every other AgentSystem in the directory.
+     *
+     * @param agent The sending agent.
+     * @param type SUBSCRIBE or UNSUBSCRIBE.
+     * @param topic The topic.
+     */
+    private static void sendToPeers(Agent agent, MessageType type, String topic) {
+        Set<InetSocketAddress> told = new HashSet<>();
+        for (AgentDirectory.Entry entry : directory.getAll()) {
+            if (!entry.getUID().isLocal() && told.add(entry.getAddress())) {
+                send(agent, type, Message.BROADCAST, topic.getBytes(StandardCharsets.UTF_8), entry.getAddress());
+            }
+        }
+    }
+
+    /**
+     * Publishes text on a topic.
+     *
+     * @param sender The publishing agent.
+     * @param topic The topic.
+     * @param text The text to publish.
+     */
+    public static void publish(Agent sender, String topic, String text) {
+        publish(sender, topic, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Publishes data on a topic. Local subscribers other than the sender all
+     * receive the same Message object without it touching the network. Each
+     * remote AgentSystem with subscribers is sent one datagram, or, if
+     * "agentsystem.multicastGroup" is set, one datagram goes to the group, and
+     * fans it out to its own subscribers.
+     *
+     * @param sender The publishing agent.
+     * @param topic The topic.
+     * @param data The data to publish.
+     */
+    public static void publish(Agent sender, String topic, byte[] data) {
+        byte[] payload = Topics.encode(topic, data);
+        if (journal != null) {
+            journal.append(Journal.SENT, MessageType.PUBLISH, sender.getId(), Message.BROADCAST, payload);
+        }
+        List<Agent> subscribers = topics.getSubscribers(topic);
+        if (!subscribers.isEmpty()) {
+            getDispatcher();
+            Message msg = new Message(MessageType.PUBLISH, sender.getId(), Message.BROADCAST, payload, localAddress);
+            for (Agent ag : subscribers) {
+                if (ag != sender) {
+                    deliverTo(ag, msg);
+                }
+            }
+        }
+        Set<InetSocketAddress> remote = topics.getRemoteSubscribers(topic);
+        if (remote.isEmpty()) {
+            return;
+        }
+        if (multicastGroup != null && payload.length <= fragmentSize()) {
+            ByteBuffer frame = leaseMsg(sender, MessageType.PUBLISH, Message.BROADCAST);
+            frame.put(payload);
+            sender.getMetrics().sent(payload.length);
+            MessageCodec.finishFrame(frame, 0);
+            frame.flip();
+            getDispatcher().send(frame, multicastGroup);
+            sendBuffers.release(frame);
+            return;
+        }
+        for (InetSocketAddress address : remote) {
+            send(sender, MessageType.PUBLISH, Message.BROADCAST, payload, address);
+        }
+    }
+
+    /**
+     * Tells an AgentSystem that has just announced itself which topics have
+     * local subscribers, each sent from one of the topic's subscribers.
+     *
+     * @param address Address of the AgentSystem.
+     */
+    private static void sendSubscriptions(InetSocketAddress address) {
+        if (address == null) {
+            return;
+        }
+        for (String topic : topics.getLocalTopics()) {
+            List<Agent> subscribers = topics.getSubscribers(topic);
+            if (!subscribers.isEmpty()) {
+                sendMsg(subscribers.get(0), MessageType.SUBSCRIBE, Message.BROADCAST, topic, address);
+            }
+        }
+    }
+
+    /**
+     * Finds an agent of the requested class, waiting as long as it takes.
+     *
+     * @param requester The agent looking for another agent.
+     * @param className Classname of the agent to look for.
+     * @return Directory entry of the agent found, or null if the requester was
+     * interrupted.
+     */
+    public static AgentDirectory.Entry findAgent(Agent requester, String className) {
+        return findAgent(requester, className, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Finds an agent of the requested class. A local agent of that class is
+     * found straight from the registry, and the directory answers if it knows
+     * a remote one; otherwise a discovery message is broadcast, and retransmitted with
+     * exponential backoff, until an agent of that class announces itself or
+     * the timeout expires.
+     *
+     * @param requester The agent looking for another agent.
+     * @param className Classname of the agent to look for.
+     * @param timeout Maximum time to look for.
+     * @param unit Unit of the timeout.
+     * @return Directory entry of the agent found, or null if none answered in
+     * time or the requester was interrupted.
+     */
+    public static AgentDirectory.Entry findAgent(Agent requester, String className, long timeout, TimeUnit unit) {
+        for (Agent ag : localAgents.lookupAll(className)) {
+            if (ag != requester) {
+                getDispatcher();
+                // A local agent is not kept in the directory, so the entry never needs to expire.
+                return new AgentDirectory.Entry(ag.getId(), className, localAddress, System.nanoTime());
+            }
+        }
+        AgentDirectory.Entry found = directory.lookup(className);
+        if (found != null) {
+            return found; // Known agent: no need to touch the network.
+        }
+
+        long begin = System.nanoTime();
+        long deadline = begin + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        long backoff = TimeUnit.MILLISECONDS.toNanos(DISCOVERY_RETRY_MS);
+        try {
+            long remaining = deadline - System.nanoTime();
+            while (found == null && remaining > 0) {
+                // Send a broadcast message that all currently running agents should receive.
+                broadcastDiscovery(requester, className, 0);
+
+                // Wait for an agent of that class to announce itself, then back off.
+                found = directory.await(className, Math.min(backoff, remaining), TimeUnit.NANOSECONDS);
+                backoff = Math.min(backoff * 2, MAX_DISCOVERY_BACKOFF_NANOS);
+                remaining = deadline - System.nanoTime();
+            }
+            if (found != null) {
+                metrics.discovered(System.nanoTime() - begin);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt(); // Requester was cancelled.
+        }
+        return found;
+    }
+
+    /**
+     * Collects every agent of the requested class that answers within the
+     * given window. The discovery broadcast is retransmitted with exponential
+     * backoff for the whole window so that lost broadcasts or answers are
+     * retried.
+     *
+     * @param requester The agent looking for other agents.
+     * @param className Classname of the agents to look for.
+     * @param window How long to collect answers for.
+     * @param unit Unit of the window.
+     * @return List of the agents that answered, fastest round-trip time first.
+     */
+    public static List<Discovery.Responder> discover(Agent requester, String className, long window, TimeUnit unit) {
+        Discovery discovery = new Discovery(className);
+        discoveries.add(discovery);
+        try {
+            long deadline = System.nanoTime() + unit.toNanos(window);
+            long backoff = TimeUnit.MILLISECONDS.toNanos(DISCOVERY_RETRY_MS);
+            long remaining = deadline - System.nanoTime();
+            while (remaining > 0) {
+                long nonce = discoveryNonces.incrementAndGet();
+                discovery.sent(nonce, System.nanoTime());
+                broadcastDiscovery(requester, className, nonce);
+                TimeUnit.NANOSECONDS.sleep(Math.min(backoff, remaining));
+                backoff = Math.min(backoff * 2, MAX_DISCOVERY_BACKOFF_NANOS);
+                remaining = deadline - System.nanoTime();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt(); // Requester was cancelled.
+        } finally {
+            discoveries.remove(discovery);
+        }
+        return discovery.getResponders();
+    }
+
+    /**
+     * Broadcasts a discovery message looking for agents of the given class.
+     *
+     * @param requester The agent looking for other agents.
+     * @param className Classname of the agents to look for.
+     * @param nonce Nonce for the answers to echo, or 0 for none.
+     */
+    private static void broadcastDiscovery(Agent requester, String className, long nonce) {
+        broadcast(requester, MessageType.DISCOVER, Discovery.withNonce(className, nonce));
+    }
+
+    /**
+     * Answers a discovery broadcast looking for the given agent's class,
+     * echoing its nonce so that the requester can time the answer.
+     *
+     * @param ag The agent answering.
+     * @param discover The DISCOVER message received.
+     */
+    public static void answerDiscovery(Agent ag, Message discover) {
+        String text = Discovery.withNonce(ag.getClassName(), Discovery.getNonce(discover.getText()));
+        sendMsg(ag, MessageType.ANNOUNCE, discover.getSenderUID(), text, discover.getSource());
+    }
+
+    /**
+     * Broadcasts a text message to every agent on every local network.
+     *
+     * @param sender The agent sending the message.
+     * @param type Kind of message.
+     * @param text The text to send.
+     */
+    public static void broadcast(Agent sender, MessageType type, String text) {
+        ByteBuffer frame = leaseMsg(sender, type, Message.BROADCAST);
+        MessageCodec.putUtf8(frame, text);
+        sender.getMetrics().sent(frame.position() - MessageCodec.HEADER_SIZE);
+        MessageCodec.finishFrame(frame, 0);
+        frame.flip();
+        for (InetSocketAddress address : broadcastAddresses.get()) {
+            getDispatcher().send(frame, address);
+        }
+        sendBuffers.release(frame);
+    }
+
+    /**
+     * Sends a text message from a local agent to another agent. The text is
+     * encoded straight into a pooled buffer, or handed over in-process if the
+     * target is a local agent.
+     *
+     * @param sender The agent sending the message.
+     * @param type Kind of message.
+     * @param targetUID UID of the agent to send the message to, or
+     * Message.BROADCAST.
+     * @param text The text to send, or null for no payload.
+     * @param address The address and port to send the message to.
+     */
+    public static void sendMsg(Agent sender, MessageType type, AgentId targetUID, String text, InetSocketAddress address) {
+        if (isLocalTarget(targetUID)) {
+            byte[] payload = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+            if (journal != null) {
+                journal.append(Journal.SENT, type, sender.getId(), targetUID, payload);
+            }
+            deliverLocally(sender, type, targetUID, payload);
+            return;
+        }
+        if (text != null && text.length() * 3 > fragmentSize()) { // UTF-8 takes up to 3 bytes per char.
+            sendMsg(sender, type, targetUID, text.getBytes(StandardCharsets.UTF_8), address);
+            return;
+        }
+        ByteBuffer frame = leaseMsg(sender, type, targetUID);
+        if (text != null) {
+            MessageCodec.putUtf8(frame, text);
+        }
+        if (journal != null) { // Journal the payload as encoded, rather than encoding the text twice.
+            journal.append(Journal.SENT, type, sender.getId(), targetUID, frame, MessageCodec.HEADER_SIZE,
+                    frame.position() - MessageCodec.HEADER_SIZE);
+        }
+        sendLeased(sender, frame, address);
+    }
+
+    /**
+     * Sends a message with a pre-encoded payload from a local agent to another
+     * agent. The payload is copied, so the sender may reuse the array.
+     *
+     * @param sender The agent sending the message.
+     * @param type Kind of message.
+     * @param targetUID UID of the agent to send the message to, or
+     * Message.BROADCAST.
+     * @param payload The payload to send, or null for no payload.
+     * @param address The address and port to send the message to.
+     */
+    public static void sendMsg(Agent sender, MessageType type, AgentId targetUID, byte[] payload, InetSocketAddress address) {
+        if (journal != null) {
+            journal.append(Journal.SENT, type, sender.getId(), targetUID, payload);
+        }
+        send(sender, type, targetUID, payload, address);
+    }
+
+    /**
+     * Sends a message with a pre-encoded payload without journaling it, e.g.
+     * because it is one copy of a message journaled once.
+     *
+     * @param sender The agent sending the message.
+     * @param type Kind of message.
+     * @param targetUID UID of the agent to send the message to, or
+     * Message.BROADCAST.
+     * @param payload The payload to send, or null for no payload.
+     * @param address The address and port to send the message to.
+     */
+    private static void send(Agent sender, MessageType type, AgentId targetUID, byte[] payload, InetSocketAddress address) {
+        if (isLocalTarget(targetUID)) {
+            deliverLocally(sender, type, targetUID, payload == null ? null : payload.clone());
+            return;
+        }
+        if (payload != null && payload.length > fragmentSize()) {
+            sendFragments(sender, type, targetUID, ByteBuffer.wrap(payload), address);
+            return;
+        }
+        ByteBuffer frame = leaseMsg(sender, type, targetUID);
+        if (payload != null) {
+            frame.put(payload);
+        }
+        sendLeased(sender, frame, address);
+    }
+
+    /**
+     * Sends a message with a pre-encoded payload from a local agent to another
+     * agent. The payload buffer's position is left unchanged.
+     *
+     * @param sender The agent sending the message.
+     * @param type Kind of message.
+     * @param targetUID UID of the agent to send the message to, or
+     * Message.BROADCAST.
+     * @param payload Buffer holding the payload between its position and limit.
+     * @param address The address and port to send the message to.
+     */
+    public static void sendMsg(Agent sender, MessageType type, AgentId targetUID, ByteBuffer payload, InetSocketAddress address) {
+        if (journal != null) {
+            journal.append(Journal.SENT, type, sender.getId(), targetUID, payload);
+        }
+        if (isLocalTarget(targetUID)) {
+            byte[] copy = new byte[payload.remaining()];
+            payload.get(payload.position(), copy);
+            deliverLocally(sender, type, targetUID, copy);
+            return;
+        }
+        if (payload.remaining() > fragmentSize()) {
+            sendFragments(sender, type, targetUID, payload, address);
+            return;
+        }
+        ByteBuffer frame = leaseMsg(sender, type, targetUID);
+        frame.put(frame.position(), payload, payload.position(), payload.remaining());
+        frame.position(frame.position() + payload.remaining());
+        sendLeased(sender, frame, address);
+    }
+
+    /**
+     * Checks whether messages to an agent can skip the network: the agent was
+     * created in this JVM, so it can only be one of the local agents.
+     *
+     * @param targetUID UID of the agent to send a message to.
+     * @return Boolean representing whether to deliver the message in-process.
+     */
+    private static boolean isLocalTarget(AgentId targetUID) {
+        return LOCAL_DELIVERY && targetUID.isLocal();
+    }
+
+    /**
+     * Delivers a message to a local agent in-process: the Message object is
+     * routed as if it had been received, with no encoding, fragmenting or
+     * system call. Its source is this system's own address, so replies sent
+     * to it reach the sender either way.
+     *
+     * @param sender The agent sending the message.
+     * @param type Kind of message.
+     * @param targetUID UID of the local agent to send the message to.
+     * @param payload The payload, owned by the message from now on, or null.
+     */
+    private static void deliverLocally(Agent sender, MessageType type, AgentId targetUID, byte[] payload) {
+        getDispatcher();
+        sender.getMetrics().sent(payload == null ? 0 : payload.length);
+        metrics.localDelivery();
+        route(new Message(type, sender.getId(), targetUID, payload, localAddress));
+    }
+
+    /**
+     * Retrieves the largest payload sent in one frame; larger payloads are
+     * split into fragments that fit into "agentsystem.fragment.mtu" bytes.
+     * The text format cannot carry fragments, so it is only limited by the
+     * largest datagram.
+     *
+     * @return Integer representing the largest unfragmented payload.
+     */
+    private static int fragmentSize() {
+        if (MessageCodec.isTextMode()) {
+            return MessageCodec.MAX_PAYLOAD;
+        }
+        return FRAGMENT_MTU - MessageCodec.HEADER_SIZE - Reassembler.HEADER_SIZE
+                - (reliableSend ? ReliableChannel.OVERHEAD : 0);
+    }
+
+    /**
+     * Sends a large payload as FRAGMENT frames that the receiving
+     * AgentSystem puts back together. The payload buffer's position is left
+     * unchanged.
+     *
+     * @param sender The agent sending the message.
+     * @param type Kind of message.
+     * @param targetUID UID of the agent to send the message to, or
+     * Message.BROADCAST.
+     * @param payload Buffer holding the payload between its position and limit.
+     * @param address The address and port to send the message to.
+     */
+    private static void sendFragments(Agent sender, MessageType type, AgentId targetUID, ByteBuffer payload, InetSocketAddress address) {
+        int id = fragmentIds.incrementAndGet();
+        int total = payload.remaining();
+        sender.getMetrics().sent(total); // One message, however many fragments.
+        int size = Math.max(1, fragmentSize());
+        int count = (total + size - 1) / size;
+        for (int index = 0; index < count; index++) {
+            int offset = index * size;
+            int length = Math.min(size, total - offset);
+            ByteBuffer frame = leaseMsg(sender, MessageType.FRAGMENT, targetUID);
+            Reassembler.putHeader(frame, id, index, count, offset, total, type);
+            frame.put(frame.position(), payload, payload.position() + offset, length);
+            frame.position(frame.position() + length);
+            sendLeased(frame, address);
+        }
+    }
+
+    /**
+     * Leases a pooled buffer holding the header of a new message, positioned
+     * where the payload starts. The caller writes the payload and hands the
+     * buffer to sendLeased, so that sending creates no garbage.
+     *
+     * @param sender The agent sending the message.
+     * @param type Kind of message.
+     * @param targetUID UID of the agent to send the message to, or
+     * Message.BROADCAST.
+     * @return ByteBuffer to write the payload into.
+     */
+    public static ByteBuffer leaseMsg(Agent sender, MessageType type, AgentId targetUID) {
+        AgentId senderUID = sender.getId();
+        ByteBuffer frame = sendBuffers.lease();
+        MessageCodec.encodeHeader(frame, type, senderUID.getMostSignificantBits(), senderUID.getLeastSignificantBits(),
+                targetUID.getMostSignificantBits(), targetUID.getLeastSignificantBits(), 0);
+        return frame;
+    }
+
+    /**
+     * Sends a message leased from leaseMsg, counting it as sent by the given
+     * agent.
+     *
+     * @param sender The agent sending the message.
+     * @param frame Buffer returned by leaseMsg, positioned after the payload.
+     * @param address The address and port to send the message to.
+     */
+    private static void sendLeased(Agent sender, ByteBuffer frame, InetSocketAddress address) {
+        sender.getMetrics().sent(frame.position() - MessageCodec.HEADER_SIZE);
+        sendLeased(frame, address);
+    }
+
+    /**
+     * Sends a message leased from leaseMsg once its payload has been written,
+     * and returns the buffer to the pool. If reliable delivery is on, the
+     * message is retransmitted until acknowledged; if batching is on, it is
+     * coalesced with other messages to the same address.
+     *
+     * @param frame Buffer returned by leaseMsg, positioned after the payload.
+     * @param address The address and port to send the message to.
+     */
+    public static void sendLeased(ByteBuffer frame, InetSocketAddress address) {
+        try {
+            MessageCodec.finishFrame(frame, 0);
+            frame.flip();
+            Dispatcher sender = getDispatcher();
+            if (reliableSend) {
+                reliable.send(frame, address);
+            } else if (batcher != null) {
+                batcher.send(frame, address);
+            } else {
+                sender.send(frame, address);
+            }
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(AgentSystem.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            sendBuffers.release(frame);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * AgentSystemMXBean interface through which JMX clients read the metrics of
+ * the whole AgentSystem. Registered as "agentsystem:type=AgentSystem".
+ * Latencies are in microseconds.
+ */
+public interface AgentSystemMXBean {
+
+    /**
+     * @return Integer representing the number of local agents.
+     */
+    int getAgentCount();
+
+    /**
+     * @return Long representing the datagrams sent on the socket.
+     */
+    long getDatagramsSent();
+
+    /**
+     * @return Long representing the bytes sent on the socket.
+     */
+    long getBytesSent();
+
+    /**
+     * @return Long representing the datagrams received on the socket.
+     */
+    long getDatagramsReceived();
+
+    /**
+     * @return Long representing the bytes received on the socket.
+     */
+    long getBytesReceived();
+
+    /**
+     * @return Long representing the datagrams dropped because handling them
+     * failed.
+     */
+    long getDatagramDrops();
+
+    /**
+     * @return Long representing the messages handed to local agents
+     * in-process.
+     */
+    long getLocalDeliveries();
+
+    /**
+     * @return Long representing the messages dropped or rejected by full
+     * mailboxes of all local agents.
+     */
+    long getMailboxDrops();
+
+    /**
+     * @return Long representing the messages waiting in all local mailboxes.
+     */
+    long getQueueDepth();
+
+    /**
+     * @return Long representing the frames retransmitted by reliable delivery.
+     */
+    long getRetransmits();
+
+    /**
+     * @return Long representing the fragmented messages dropped incomplete.
+     */
+    long getFragmentDrops();
+
+    /**
+     * @return Long representing the log lines dropped because the logging
+     * ring was full.
+     */
+    long getLogDrops();
+
+    /**
+     * @return Long representing the round-trip times measured by reliable
+     * delivery.
+     */
+    long getRttCount();
+
+    /**
+     * @return Double representing the median round-trip time.
+     */
+    double getRttP50Micros();
+
+    /**
+     * @return Double representing the 99th percentile round-trip time.
+     */
+    double getRttP99Micros();
+
+    /**
+     * @return Long representing the agents found by discovery over the
+     * network.
+     */
+    long getDiscoveryCount();
+
+    /**
+     * @return Double representing the median time to find an agent.
+     */
+    double getDiscoveryP50Micros();
+
+    /**
+     * @return Double representing the 99th percentile time to find an agent.
+     */
+    double getDiscoveryP99Micros();
+
+    /**
+     * @return String representing every metric as text, one line per agent.
+     */
+    String getSnapshot();
+
+    /**
+     * Forgets the recorded round-trip and discovery times.
+     */
+    void resetLatencies();
+}
@@ -0,0 +1,239 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Batcher class that coalesces small frames bound for the same address into
+ * one datagram. A batch is sent once the next frame would not fit into the
+ * MTU, or when the oldest frame in it has waited for the flush delay. Frames
+ * carry their own length, so the receiver simply reads frames until the
+ * datagram is used up.
+ *
+ * The batch of an address that has not started a batch for the idle time,
+ * the AgentDirectory's time to live, is dropped by the flusher thread and its
+ * buffer kept for the next new batch, so that addresses that come and go do
+ * not each hold on to an MTU of direct memory.
+ */
+public class Batcher implements Runnable {
+
+    public static final String ENABLED_PROPERTY = "agentsystem.batch"; // Whether to batch sends.
+    public static final String DELAY_PROPERTY = "agentsystem.batch.delayUs"; // Longest wait before a flush.
+    public static final String MTU_PROPERTY = "agentsystem.batch.mtu"; // Largest batched datagram.
+
+    private final Dispatcher dispatcher; // Sends the batches.
+    private final int mtu; // Largest datagram a batch grows to.
+    private final long delayNanos; // Longest time a frame waits in a batch.
+    private final long idleNanos; // Time without a new batch after which an address's batch is dropped.
+    private final BufferPool buffers; // Buffers of dropped batches, for new ones.
+    private final Map<InetSocketAddress, Batch> batches = new ConcurrentHashMap<>(); // Open batch per address.
+    private final Thread flusher; // Thread flushing batches whose delay has passed.
+    private volatile boolean running = true; // Whether the flusher thread should keep running.
+
+    /**
+     * Constructor for Batcher. Starts the flusher thread.
+     *
+     * @param sender Dispatcher that sends the batches.
+     * @param mtuBytes Largest datagram a batch grows to.
+     * @param delayMicros Longest time in microseconds a frame waits in a batch.
+     * @param idle Time without a new batch after which an address's batch is
+     * dropped.
+     * @param unit Unit of the idle time.
+     */
+    public Batcher(Dispatcher sender, int mtuBytes, long delayMicros, long idle, TimeUnit unit) {
+        dispatcher = sender;
+        mtu = mtuBytes;
+        delayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+        idleNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), unit.toNanos(idle));
+        buffers = new BufferPool(mtu);
+        flusher = new Thread(this, "agent-batch-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Adds a frame to the batch for its address. Frames larger than the MTU
+     * are sent on their own, after anything already batched for the address.
+     * The frame's position is left unchanged.
+     *
+     * @param frame Buffer holding a binary frame between its position and
+     * limit.
+     * @param address The address to send the frame to.
+     */
+    public void send(ByteBuffer frame, InetSocketAddress address) {
+        while (true) {
+            Batch batch = batch(address);
+            synchronized (batch) {
+                if (!batch.evicted) {
+                    if (batch.add(frame)) {
+                        LockSupport.unpark(flusher); // A new batch started: the flusher must watch its deadline.
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the batch of an address, creating it if there is none.
+     *
+     * @param address The address.
+     * @return Batch of the address.
+     */
+    private Batch batch(InetSocketAddress address) {
+        Batch batch = batches.get(address);
+        if (batch == null) {
+            Batch created = new Batch(address);
+            batch = batches.putIfAbsent(address, created);
+            if (batch == null) {
+                batch = created;
+            } else {
+                created.evict(); // Lost the race: give its buffer back.
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Sends every open batch now.
+     */
+    public void flushAll() {
+        for (Batch batch : batches.values()) {
+            batch.flush();
+        }
+    }
+
+    /**
+     * Flushes batches as their delay passes, sleeping until the earliest
+     * deadline of any open batch, and drops idle batches every quarter of
+     * the idle time.
+     */
+    @Override
+    public void run() {
+        long sweepNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), idleNanos / 4);
+        long nextSweep = System.nanoTime() + sweepNanos;
+        while (running) {
+            long now = System.nanoTime();
+            long next = nextSweep - now;
+            boolean sweep = next <= 0;
+            if (sweep) {
+                nextSweep = now + sweepNanos;
+                next = sweepNanos;
+            }
+            for (Map.Entry<InetSocketAddress, Batch> entry : batches.entrySet()) {
+                Batch batch = entry.getValue();
+                long deadline = batch.deadline;
+                if (deadline == 0) {
+                    if (sweep && batch.evictIfIdle(now)) {
+                        batches.remove(entry.getKey(), batch);
+                    }
+                    continue; // Empty batch.
+                }
+                if (now - deadline >= 0) {
+                    batch.flush();
+                } else {
+                    next = Math.min(next, deadline - now);
+                }
+            }
+            LockSupport.parkNanos(this, next);
+        }
+    }
+
+    /**
+     * Flushes every open batch and stops the flusher thread.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(flusher);
+        flushAll();
+    }
+
+    /**
+     * Batch class holding the frames waiting to be sent to one address.
+     */
+    private class Batch {
+
+        private final InetSocketAddress address; // Where the batch is sent.
+        private ByteBuffer buf = buffers.lease(); // Frames waiting to be sent, null once evicted.
+        private volatile long deadline; // System.nanoTime() at which to flush, 0 when empty.
+        private long started = System.nanoTime(); // System.nanoTime() at which the latest batch started.
+        private boolean evicted; // Whether the batch was dropped; a new Batch takes its place.
+
+        /**
+         * Constructor for Batch.
+         *
+         * @param target Where the batch is sent.
+         */
+        Batch(InetSocketAddress target) {
+            address = target;
+        }
+
+        /**
+         * Appends a frame, flushing first if it does not fit.
+         *
+         * @param frame Buffer holding a binary frame.
+         * @return Boolean representing whether the frame started a new batch.
+         */
+        synchronized boolean add(ByteBuffer frame) {
+            int length = frame.remaining();
+            if (length > buf.remaining()) {
+                flush();
+            }
+            if (length > buf.capacity()) {
+                dispatcher.send(frame, address); // Too big to batch.
+                return false;
+            }
+            buf.put(buf.position(), frame, frame.position(), length);
+            buf.position(buf.position() + length);
+            boolean first = deadline == 0;
+            if (first) {
+                started = System.nanoTime();
+                deadline = started + delayNanos;
+            }
+            if (buf.remaining() < MessageCodec.HEADER_SIZE) {
+                flush(); // No further frame can fit.
+                return false;
+            }
+            return first;
+        }
+
+        /**
+         * Drops this batch and returns its buffer if it is empty and no batch
+         * was started for the idle time.
+         *
+         * @param now Current System.nanoTime().
+         * @return Boolean representing whether the batch was dropped.
+         */
+        synchronized boolean evictIfIdle(long now) {
+            if (deadline == 0 && now - started >= idleNanos) {
+                evict();
+            }
+            return evicted;
+        }
+
+        /**
+         * Drops this batch and returns its buffer.
+         */
+        synchronized void evict() {
+            if (!evicted) {
+                evicted = true;
+                buffers.release(buf);
+                buf = null;
+            }
+        }
+
+        /**
+         * Sends the frames in this batch as one datagram.
+         */
+        synchronized void flush() {
+            if (!evicted && buf.position() > 0) {
+                buf.flip();
+                dispatcher.send(buf, address);
+                buf.clear();
+            }
+            deadline = 0;
+        }
+    }
+}
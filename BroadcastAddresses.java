@@ -0,0 +1,88 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * BroadcastAddresses class that caches the IPv4 broadcast address of every
+ * network interface that is up, as reported by the interface's subnet mask.
+ * The interfaces are enumerated once and then only re-checked after a refresh
+ * interval, so sending a broadcast does not touch the network configuration.
+ */
+public class BroadcastAddresses {
+
+    public static final String REFRESH_PROPERTY = "agentsystem.interfaceRefreshMs"; // Re-check interval.
+
+    private final int port; // Port broadcasts are sent to.
+    private final long refreshNanos; // How long the cached addresses are trusted.
+    private volatile List<InetSocketAddress> addresses; // Cached broadcast addresses.
+    private volatile long refreshedAt; // System.nanoTime() of the last enumeration.
+
+    /**
+     * Constructor for BroadcastAddresses.
+     *
+     * @param targetPort Port broadcasts are sent to.
+     * @param refreshMillis How often, in milliseconds, the interfaces are
+     * checked for changes.
+     */
+    public BroadcastAddresses(int targetPort, long refreshMillis) {
+        port = targetPort;
+        refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+        refresh();
+    }
+
+    /**
+     * Retrieves the broadcast addresses of all interfaces, re-checking the
+     * interfaces if the refresh interval has passed.
+     *
+     * @return List of broadcast addresses and ports to send to.
+     */
+    public List<InetSocketAddress> get() {
+        if (System.nanoTime() - refreshedAt > refreshNanos) {
+            refresh();
+        }
+        return addresses;
+    }
+
+    /**
+     * Enumerates the network interfaces and replaces the cached addresses if
+     * they changed.
+     */
+    public synchronized void refresh() {
+        List<InetSocketAddress> found = new ArrayList<>();
+        try {
+            for (NetworkInterface netint : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!netint.isUp() || netint.isLoopback()) {
+                    continue;
+                }
+                for (InterfaceAddress ifAddr : netint.getInterfaceAddresses()) {
+                    InetAddress broadcast = ifAddr.getBroadcast(); // Derived from the real subnet mask.
+                    if (ifAddr.getAddress() instanceof Inet4Address && broadcast != null) {
+                        InetSocketAddress target = new InetSocketAddress(broadcast, port);
+                        if (!found.contains(target)) {
+                            found.add(target);
+                        }
+                    }
+                }
+            }
+        } catch (SocketException ex) {
+            Logger.getLogger(BroadcastAddresses.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (found.isEmpty()) {
+            // No network: agents on this host can still find each other.
+            found.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        if (!found.equals(addresses)) {
+            addresses = Collections.unmodifiableList(found);
+        }
+        refreshedAt = System.nanoTime();
+    }
+}
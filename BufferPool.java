@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+
+/**
+ * BufferPool class that leases direct ByteBuffers from a bounded pool shared
+ * by every thread. Agents run on a thread each, often virtual threads that
+ * come and go, so buffers are not tied to a thread: a buffer released by one
+ * agent is leased by the next, and the pool never holds more than its
+ * capacity however many threads send.
+ *
+ * The free buffers are kept in a Ring, the lock-free queue Mailbox uses, as
+ * any thread may lease or release. Leasing and releasing never lock or
+ * allocate once the pool is warm; a lease from an empty pool allocates a new
+ * buffer, and a release to a full pool leaves the buffer to the garbage
+ * collector.
+ */
+public class BufferPool {
+
+    private static final int DEFAULT_CAPACITY = 64; // Free buffers kept at most.
+
+    private final int bufferSize; // Capacity of every buffer.
+    private final Ring<ByteBuffer> free; // Free buffers.
+
+    /**
+     * Constructor for BufferPool keeping up to 64 free buffers.
+     *
+     * @param size Capacity of every buffer in bytes.
+     */
+    public BufferPool(int size) {
+        this(size, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor for BufferPool.
+     *
+     * @param size Capacity of every buffer in bytes.
+     * @param capacity Free buffers kept at most, rounded up to a power of two.
+     */
+    public BufferPool(int size, int capacity) {
+        bufferSize = size;
+        free = new Ring<>(capacity);
+    }
+
+    /**
+     * Leases a cleared buffer from the pool, allocating one if the pool is
+     * empty.
+     *
+     * @return ByteBuffer to write into.
+     */
+    public ByteBuffer lease() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a leased buffer to the pool. The buffer must not be used after
+     * it is released.
+     *
+     * @param buf The buffer to return.
+     */
+    public void release(ByteBuffer buf) {
+        free.offer(buf); // If full, let the garbage collector have it.
+    }
+}
@@ -1,140 +1,576 @@
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-/**
- * ChatServerAgent class that supports sending and receiving messages from a
- * ChatClientAgent. Note that messages have the following format: "message + : +
- * agentUID".
- */
-public class ChatServerAgent extends Agent {
-
-    private boolean establishedConnection = false; // Whether this server has connected to a client.
-
-
-    /**
-     * Constructor for ChatServerAgent.
-     */
-    public ChatServerAgent() {
-        super("ChatServerAgent");
-    }
-
-    /**
-     * Starts up this agent by looking for a server and then supporting chatting
-     * until the chat has ended.
-     *
-     * @return boolean representing completion of the method.
-     */
-    @Override
-    public boolean start() {
-        try {
-            boolean endChat = false;
-            System.out.println("ChatServerAgent[id=" + getUID() + "]: Waiting for clients...");
-            byte[] buf = new byte[1000];
-            DatagramPacket dgp = new DatagramPacket(buf, buf.length);
-            DatagramSocket sk = new DatagramSocket(AgentSystem.getPort());
-
-            // While the chat has not ended, send and receive messages.
-            while (!endChat) {
-                SocketPacketPackage pack = receiveMessage(sk, dgp); // Receive message from client.
-
-                // Process received msg
-                String str = new String(pack.packet.getData(), 0, pack.packet.getLength());
-                String[] split = str.split(":");
-                if (split[0].toLowerCase().equals("end chat")) {
-                    System.out.println("...ending chat");
-                    endChat(pack);
-                    endChat = true;
-                } else {
-                    sendMessage(pack, split);
-                }
-            }
-            return true; // Successful completion.
-        } catch (SocketException ex) {
-            Logger.getLogger(PongAgent.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(ChatServerAgent.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return false; // Failed completion.
-    }
-
-    /**
-     * Sends a message to the client agent.
-     *
-     * @param pack    SocketPacketPackage containing the socket/packet necessary to
-     *                send a message.
-     * @param split   String array containing the message previously received from
-     *                the client, where the original string was split with delimiter ":".
-     * @throws IOException
-     */
-    private void sendMessage(SocketPacketPackage pack, String[] split) throws IOException {
-        String outMessage;
-
-        // Client's initial broadcast message received. Prepare to connect.
-        if (split[0].equals(ChatClientAgent.getBroadcastMsg())) {
-            outMessage = "IAMChatServerAgent:" + getUID();
-        } else {
-            // Connection already established. outMessage is the user input.
-            System.out.print("Enter message: ");
-            BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
-            outMessage = stdin.readLine();
-            outMessage += ":" + getUID();
-        }
-        byte[] buf = outMessage.getBytes();
-        DatagramPacket out = new DatagramPacket(buf, buf.length, pack.packet.getAddress(), pack.packet.getPort());
-
-        // Have the agent system send the message.
-        AgentSystem.sendMsg(pack.socket, outMessage, pack.packet.getAddress(), pack.packet.getPort());
-    }
-
-    /**
-     * Receives a message from the client.
-     *
-     * @param socket DatagramSocket that will receive the message.
-     * @param dgPacket DatagramPacket that will contain the received message.
-     * @return SocketPacketPackage representing the socket and packet that
-     * contain data about the message received.
-     */
-    private SocketPacketPackage receiveMessage(DatagramSocket socket, DatagramPacket dgPacket) {
-        try {
-            socket.receive(dgPacket); // Receive message.
-            String str = new String(dgPacket.getData(), 0, dgPacket.getLength());
-            String[] split = str.split(":");
-
-            if(!establishedConnection) { // Broadcast message
-                // Establish connection.
-                System.out.println("Connection granted: Wait for client to send message. Type 'end chat' to end the chat.");
-                establishedConnection = true;
-            } else {
-              System.out.println("Received: " + split[0]);
-            }
-            return (new SocketPacketPackage(socket, dgPacket));
-        } catch (SocketException ex) {
-            Logger.getLogger(PongAgent.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(PongAgent.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return null; // Error occurred.
-    }
-
-    /**
-     * Ends a chat between the client and server agents.
-     *
-     * @param pack SocketPacketPackage containing the socket/packet necessary to
-     * send a message.
-     */
-    private void endChat(SocketPacketPackage pack) {
-        String outMessage = "end chat";
-        byte[] buf = outMessage.getBytes();
-        DatagramPacket out = new DatagramPacket(buf, buf.length, pack.packet.getAddress(), pack.packet.getPort());
-
-        // Have the agent system send the "end chat" message.
-        AgentSystem.sendMsg(pack.socket, outMessage, pack.packet.getAddress(), pack.packet.getPort());
-    }
-}
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ChatServerAgent class that supports chatting with any number of
+ * ChatClientAgents. Every client sending a message gets a session, keyed by
+ * its UID, holding its nickname and room; everything a client types is
+ * shown to every member of its room. Clients start in the "lobby" and type
+ * "/nick name", "/join room" and "/who" to change their nickname, move to
+ * another room and list the members of their room.
+ *
+ * All sessions are served by this agent's own thread, in the order their
+ * messages arrive in its mailbox, so no session state is shared. Each room
+ * is the topic "chat/serverUID/room": a room message is published once and
+ * reaches every AgentSystem with members in one datagram, however many of
+ * its clients are in the room. The server's UID keeps the rooms of servers
+ * on the same network apart, since subscriptions are broadcast. A session holds only its client's address,
+ * nickname and room, never queued messages, so its memory is bounded;
+ * sessions idle for "agentsystem.chat.idleMs" are closed, and beyond
+ * "agentsystem.chat.maxSessions" the least recently active is.
+ *
+ * The last HISTORY_LINES said in each room are shown to clients joining it.
+ * If the AgentSystem keeps a journal, the history is rebuilt at startup by
+ * replaying the room messages journaled from "agentsystem.chat.replayFrom"
+ * on, so it survives a restart of the server. With a snapshot (see
+ * Snapshot) the history is saved as well, and only the messages journaled
+ * after it are replayed; the sessions are saved too, so clients stay in
+ * their rooms across the restart.
+ *
+ * Lines typed on the server's console are announced to every room, and
+ * "end chat" ends every session and stops the server; see ConsoleInput.
+ */
+public class ChatServerAgent extends Agent {
+
+    public static final String MAX_SESSIONS_PROPERTY = "agentsystem.chat.maxSessions"; // Sessions kept at most.
+    public static final String IDLE_PROPERTY = "agentsystem.chat.idleMs"; // Silence after which a session is closed.
+    public static final String REPLAY_PROPERTY = "agentsystem.chat.replayFrom"; // Journal offset history is rebuilt from.
+
+    public static final String LOBBY = "lobby"; // Room every client starts in.
+    private static final String ROOM_TOPIC_PREFIX = "chat/"; // Topic of a room is this, the server's UID, '/' and its name.
+    private static final int MAX_NAME_LENGTH = 32; // Longest nickname or room name.
+    private static final int HISTORY_LINES = 20; // Lines of history kept per room.
+    private static final int HISTORY_ROOMS = 1000; // Rooms whose history is kept, most recently used.
+
+    private final int maxSessions = Integer.getInteger(MAX_SESSIONS_PROPERTY, 10000);
+    private final long idleNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(IDLE_PROPERTY, 600_000));
+    private final Map<AgentId, Session> sessions = new LinkedHashMap<>(16, 0.75f, true); // Least recently active first.
+    private final Map<String, Set<Session>> rooms = new HashMap<>(); // Members of every room that has any.
+    private final Map<String, ArrayDeque<String>> history = new LinkedHashMap<String, ArrayDeque<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<String>> eldest) {
+            return size() > HISTORY_ROOMS;
+        }
+    }; // Latest lines said in each room.
+    private long guests; // Number of default nicknames handed out.
+    private long historyEnd = -1; // Journal offset up to which the history is built, or -1.
+    private boolean resumed; // Whether sessions were restored whose clients have not been told yet.
+
+    /**
+     * Constructor for ChatServerAgent.
+     */
+    public ChatServerAgent() {
+        super("ChatServerAgent");
+    }
+
+    /**
+     * Starts up this agent by serving clients as their messages arrive until
+     * "end chat" is typed on the console.
+     *
+     * @return boolean representing completion of the method.
+     */
+    @Override
+    public boolean start() {
+        replayHistory();
+        if (resumed) {
+            resumed = false;
+            for (Session session : sessions.values()) {
+                tell(session, "The server restarted. You are still in " + session.room + " as " + session.nick + ".");
+            }
+        }
+        AgentLog.info("ChatServerAgent[id={}]: Waiting for clients...", getUID());
+        ConsoleInput.attach(this);
+        try {
+            long sweepNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10), idleNanos / 4);
+            long nextSweep = System.nanoTime() + sweepNanos;
+            while (true) {
+                Message msg = receive(sweepNanos, TimeUnit.NANOSECONDS); // Typed line or message from a client.
+                if (msg == null && (Thread.currentThread().isInterrupted() || isStopping())) {
+                    return false; // Failed completion.
+                }
+                long now = System.nanoTime();
+                if (msg != null) {
+                    try {
+                        if (!serve(msg, now)) {
+                            return true; // Successful completion.
+                        }
+                    } finally {
+                        msg.release();
+                    }
+                }
+                if (now - nextSweep >= 0) {
+                    closeIdle(now);
+                    nextSweep = now + sweepNanos;
+                }
+            }
+        } finally {
+            ConsoleInput.detach(this);
+        }
+    }
+
+    /**
+     * Retrieves the topic a server publishes a room's messages on.
+     *
+     * @param server UID of the server.
+     * @param room Name of the room.
+     * @return String representing the room's topic.
+     */
+    public static String roomTopic(AgentId server, String room) {
+        return ROOM_TOPIC_PREFIX + server + "/" + room;
+    }
+
+    /**
+     * Retrieves the room of one of a server's room topics.
+     *
+     * @param topic The topic, or null.
+     * @param server UID of the server.
+     * @return String representing the name of the room, or null if the topic
+     * is not a room of the server.
+     */
+    private static String roomOf(String topic, AgentId server) {
+        String prefix = roomTopic(server, "");
+        return topic != null && topic.startsWith(prefix) ? topic.substring(prefix.length()) : null;
+    }
+
+    /**
+     * Checks whether a nickname or room name is acceptable: short, and made
+     * of letters, digits, '-' and '_'.
+     *
+     * @param name The name.
+     * @return Boolean representing whether the name can be used.
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Saves the history of every room and the number of guests, with the
+     * journal offset the history is complete up to, and every session with
+     * its client's address, nickname and room.
+     *
+     * @return Byte array representing the state.
+     */
+    @Override
+    public byte[] saveState() {
+        Journal journal = AgentSystem.getJournal();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(journal == null ? -1 : journal.getNextOffset());
+            out.writeLong(guests);
+            out.writeInt(history.size());
+            for (Map.Entry<String, ArrayDeque<String>> room : history.entrySet()) {
+                writeString(out, room.getKey());
+                out.writeInt(room.getValue().size());
+                for (String line : room.getValue()) {
+                    writeString(out, line);
+                }
+            }
+            out.writeInt(sessions.size());
+            for (Session session : sessions.values()) {
+                out.writeLong(session.clientID.getMostSignificantBits());
+                out.writeLong(session.clientID.getLeastSignificantBits());
+                byte[] ip = session.address.getAddress().getAddress();
+                out.writeByte(ip.length);
+                out.write(ip);
+                out.writeShort(session.address.getPort());
+                writeString(out, session.nick);
+                writeString(out, session.room);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ChatServerAgent.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores the state saved by saveState, so that only messages journaled
+     * since are replayed, and clients that were in a room are still members
+     * without having to join again. They are told the server restarted once
+     * it starts.
+     *
+     * @param state The saved state.
+     */
+    @Override
+    public void restoreState(byte[] state) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(state))) {
+            long end = in.readLong();
+            long savedGuests = in.readLong();
+            Map<String, ArrayDeque<String>> saved = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String room = readString(in);
+                ArrayDeque<String> lines = new ArrayDeque<>(HISTORY_LINES);
+                for (int j = in.readInt(); j > 0; j--) {
+                    lines.addLast(readString(in));
+                }
+                saved.put(room, lines);
+            }
+            Map<AgentId, Session> savedSessions = new LinkedHashMap<>();
+            for (int i = in.available() > 0 ? in.readInt() : 0; i > 0; i--) { // Older states have no sessions.
+                AgentId client = new AgentId(in.readLong(), in.readLong());
+                byte[] ip = new byte[in.readUnsignedByte()];
+                in.readFully(ip);
+                InetSocketAddress address = new InetSocketAddress(InetAddress.getByAddress(ip), in.readUnsignedShort());
+                Session session = new Session(client, address, readString(in));
+                session.room = readString(in);
+                savedSessions.put(client, session);
+            }
+            historyEnd = end;
+            guests = savedGuests;
+            history.putAll(saved);
+            long now = System.nanoTime();
+            for (Session session : savedSessions.values()) {
+                session.lastActive = now; // Idle time starts over.
+                sessions.put(session.clientID, session);
+                rooms.computeIfAbsent(session.room, k -> new LinkedHashSet<>()).add(session);
+            }
+            resumed = !savedSessions.isEmpty();
+        } catch (IOException ex) {
+            Logger.getLogger(ChatServerAgent.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Writes a string as its length and UTF-8 bytes, since lines may be
+     * longer than writeUTF allows.
+     *
+     * @param out Stream to write to.
+     * @param text The string.
+     * @throws IOException if writing fails.
+     */
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     *
+     * @param in Stream to read from.
+     * @return String that was read.
+     * @throws IOException if reading fails.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rebuilds the history of every room from the room messages in the
+     * journal, if there is one, that are not in the history yet. Only
+     * messages a server published on its own rooms are replayed; after a cold
+     * restart that server had another UID.
+     */
+    private void replayHistory() {
+        Journal journal = AgentSystem.getJournal();
+        if (journal == null) {
+            return;
+        }
+        long from = Math.max(Long.getLong(REPLAY_PROPERTY, 0), historyEnd);
+        long next = journal.replay(from, entry -> {
+            Message msg = entry.getMessage();
+            if (entry.isSent() && msg.getType() == MessageType.PUBLISH) {
+                String room = roomOf(Topics.getTopic(msg), msg.getSenderUID());
+                if (room != null) {
+                    remember(room, StandardCharsets.UTF_8.decode(Topics.getData(msg)).toString());
+                }
+            }
+        });
+        historyEnd = next;
+        AgentLog.info("ChatServerAgent[id={}]: Replayed history of {} rooms from journal offsets {} to {}", getUID(),
+                history.size(), from, next);
+    }
+
+    /**
+     * Handles one message.
+     *
+     * @param msg Typed line or message from a client.
+     * @param now System.nanoTime() at which it was taken from the mailbox.
+     * @return Boolean representing whether the server keeps running.
+     */
+    private boolean serve(Message msg, long now) {
+        if (ConsoleInput.isInput(this, msg)) {
+            return console(msg);
+        }
+        switch (msg.getType()) {
+            case DISCOVER:
+                if (Discovery.isLookingFor(msg, getClassName())) {
+                    // A client is looking for a chat server: respond so it can connect.
+                    AgentSystem.answerDiscovery(this, msg);
+                }
+                break;
+            case CHAT:
+                chat(connect(msg, now), msg.getText());
+                break;
+            case END_CHAT:
+                Session session = sessions.get(msg.getSenderUID());
+                if (session != null) {
+                    close(session, "left");
+                }
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Handles a line typed on the server's console.
+     *
+     * @param input Typed line, or END_CHAT at the end of input.
+     * @return Boolean representing whether the server keeps running.
+     */
+    private boolean console(Message input) {
+        if (input.getType() == MessageType.END_CHAT) {
+            return true; // End of input: keep serving the clients.
+        }
+        String text = input.getText();
+        if (!text.equalsIgnoreCase("end chat")) {
+            for (String room : rooms.keySet()) {
+                send(room, "[" + room + "] server: " + text);
+            }
+            return true;
+        }
+        System.out.println("...ending chat");
+        for (Session session : sessions.values()) {
+            AgentSystem.sendMsg(this, MessageType.END_CHAT, session.clientID, (byte[]) null, session.address);
+        }
+        sessions.clear();
+        rooms.clear();
+        return false;
+    }
+
+    /**
+     * Finds the session of the client that sent a message, opening one in the
+     * lobby for a new client, and records the client's activity.
+     *
+     * @param msg Message received from a client.
+     * @param now System.nanoTime() at which it was received.
+     * @return Session of the client.
+     */
+    private Session connect(Message msg, long now) {
+        Session session = sessions.get(msg.getSenderUID()); // Also marks it most recently active.
+        if (session == null) {
+            if (sessions.size() >= maxSessions) {
+                close(sessions.values().iterator().next(), "timed out"); // Make room by closing the least active.
+            }
+            session = new Session(msg.getSenderUID(), msg.getSource(), "guest-" + ++guests);
+            sessions.put(session.clientID, session);
+            AgentLog.info("ChatServerAgent[id={}]: Session opened for ChatClientAgent[id={}] as {}", getUID(),
+                    session.clientID, session.nick);
+            tell(session, "Welcome " + session.nick + ". You are in " + LOBBY
+                    + ". Commands: /nick name, /join room, /who, end chat");
+            join(session, LOBBY);
+        }
+        session.address = msg.getSource(); // Follow a client whose address changed.
+        session.lastActive = now;
+        return session;
+    }
+
+    /**
+     * Handles a line a client typed: a command, or a message for its room.
+     * Clients send an empty line to open their session.
+     *
+     * @param session Session of the client.
+     * @param text The line.
+     */
+    private void chat(Session session, String text) {
+        if (text.isEmpty()) {
+            return; // Only opens the session.
+        } else if (text.startsWith("/nick ")) {
+            String nick = text.substring(6).trim();
+            if (isValidName(nick)) {
+                send(session.room, "[" + session.room + "] " + session.nick + " is now " + nick);
+                session.nick = nick;
+            } else {
+                tell(session, "Nicknames are up to " + MAX_NAME_LENGTH + " letters, digits, '-' or '_'.");
+            }
+        } else if (text.startsWith("/join ")) {
+            String room = text.substring(6).trim();
+            if (isValidName(room)) {
+                leave(session, "left for " + room);
+                join(session, room);
+            } else {
+                tell(session, "Room names are up to " + MAX_NAME_LENGTH + " letters, digits, '-' or '_'.");
+            }
+        } else if (text.equals("/who")) {
+            StringBuilder who = new StringBuilder("In ").append(session.room).append(':');
+            for (Session member : rooms.get(session.room)) {
+                who.append(' ').append(member.nick);
+            }
+            tell(session, who.toString());
+        } else {
+            send(session.room, "[" + session.room + "] " + session.nick + ": " + text);
+        }
+    }
+
+    /**
+     * Adds a session to a room and tells the room.
+     *
+     * @param session The session.
+     * @param room Name of the room.
+     */
+    private void join(Session session, String room) {
+        ArrayDeque<String> lines = history.get(room);
+        if (lines != null) {
+            for (String line : lines) {
+                tell(session, line);
+            }
+        }
+        session.room = room;
+        rooms.computeIfAbsent(room, k -> new LinkedHashSet<>()).add(session);
+        send(room, "[" + room + "] " + session.nick + " joined");
+    }
+
+    /**
+     * Removes a session from its room and tells the members left, dropping
+     * the room once it is empty.
+     *
+     * @param session The session.
+     * @param why What the other members are told.
+     */
+    private void leave(Session session, String why) {
+        Set<Session> members = rooms.get(session.room);
+        if (members == null || !members.remove(session)) {
+            return;
+        }
+        if (members.isEmpty()) {
+            rooms.remove(session.room);
+        } else {
+            send(session.room, "[" + session.room + "] " + session.nick + " " + why);
+        }
+    }
+
+    /**
+     * Closes a session and tells its client the chat has ended.
+     *
+     * @param session The session.
+     * @param why What the other members of its room are told.
+     */
+    private void close(Session session, String why) {
+        sessions.remove(session.clientID);
+        leave(session, why);
+        AgentSystem.sendMsg(this, MessageType.END_CHAT, session.clientID, (byte[]) null, session.address);
+        AgentLog.info("ChatServerAgent[id={}]: Session of {} {}", getUID(), session.nick, why);
+    }
+
+    /**
+     * Closes every session that has been idle for longer than
+     * "agentsystem.chat.idleMs". Sessions are kept least recently active
+     * first, so only the sessions closed and one more are looked at.
+     *
+     * @param now Current System.nanoTime().
+     */
+    private void closeIdle(long now) {
+        while (!sessions.isEmpty()) {
+            Session session = sessions.values().iterator().next(); // Least recently active.
+            if (now - session.lastActive < idleNanos) {
+                return;
+            }
+            close(session, "timed out");
+        }
+    }
+
+    /**
+     * Shows a line to every member of a room. The line is published once on
+     * the room's topic; the text format has no publish/subscribe, so there
+     * every member is sent its own copy.
+     *
+     * @param room Name of the room.
+     * @param text The line.
+     */
+    private void send(String room, String text) {
+        remember(room, text);
+        if (!MessageCodec.isTextMode()) {
+            AgentSystem.publish(this, roomTopic(getId(), room), text);
+            return;
+        }
+        Set<Session> members = rooms.get(room);
+        if (members != null) {
+            for (Session member : members) {
+                tell(member, text);
+            }
+        }
+    }
+
+    /**
+     * Adds a line to the history of a room if it is something a member or
+     * the server said, rather than news of members coming and going.
+     *
+     * @param room Name of the room.
+     * @param text The line, "[room] nick: text" if something was said.
+     */
+    private void remember(String room, String text) {
+        int nick = text.indexOf("] ") + 2;
+        int end = text.indexOf(' ', nick);
+        if (nick < 2 || end < 1 || text.charAt(end - 1) != ':') {
+            return; // Nicknames have no ':', so this is not "nick: text".
+        }
+        ArrayDeque<String> lines = history.computeIfAbsent(room, k -> new ArrayDeque<>(HISTORY_LINES));
+        if (lines.size() == HISTORY_LINES) {
+            lines.removeFirst();
+        }
+        lines.addLast(text);
+    }
+
+    /**
+     * Shows a line to one client only.
+     *
+     * @param session Session of the client.
+     * @param text The line.
+     */
+    private void tell(Session session, String text) {
+        AgentSystem.sendMsg(this, MessageType.CHAT, session.clientID, text, session.address);
+    }
+
+    /**
+     * Session class holding what the server knows about one client.
+     */
+    private static final class Session {
+
+        private final AgentId clientID; // UID of the client.
+        private InetSocketAddress address; // Address the client's latest message came from.
+        private String nick; // Name shown to the other members.
+        private String room; // Room the client is in.
+        private long lastActive; // System.nanoTime() of the client's latest message.
+
+        /**
+         * Constructor for Session.
+         *
+         * @param client UID of the client.
+         * @param from Address of the client.
+         * @param name Initial nickname.
+         */
+        Session(AgentId client, InetSocketAddress from, String name) {
+            clientID = client;
+            address = from;
+            nick = name;
+        }
+    }
+}
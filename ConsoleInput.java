@@ -0,0 +1,100 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ConsoleInput class that reads lines typed on the console on its own
+ * thread, so that agents never block on standard input. Each line is
+ * delivered to the mailbox of every attached agent as a CHAT message from
+ * the agent to itself, next to the messages arriving from the network; the
+ * agent's single receive loop then shows incoming messages as soon as they
+ * arrive and sends typed lines as soon as they are entered. The end of input
+ * is delivered as an END_CHAT message the same way.
+ *
+ * Standard input is read through one reader for the life of the JVM; lines
+ * typed while no agent is attached are discarded.
+ */
+public final class ConsoleInput {
+
+    private static final CopyOnWriteArrayList<Agent> readers = new CopyOnWriteArrayList<>(); // Agents receiving typed lines.
+    private static Thread thread; // Thread reading standard input, or null before the first attach.
+
+    /**
+     * Constructor for ConsoleInput, which only has static methods.
+     */
+    private ConsoleInput() {
+    }
+
+    /**
+     * Starts delivering typed lines to an agent's mailbox, starting the
+     * reading thread on first use.
+     *
+     * @param agent The agent.
+     */
+    public static synchronized void attach(Agent agent) {
+        readers.addIfAbsent(agent);
+        if (thread == null) {
+            thread = new Thread(ConsoleInput::read, "agent-console");
+            thread.setDaemon(true); // Never keeps the JVM alive waiting for input.
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops delivering typed lines to an agent.
+     *
+     * @param agent The agent.
+     */
+    public static void detach(Agent agent) {
+        readers.remove(agent);
+    }
+
+    /**
+     * Checks whether a message holds console input rather than a message from
+     * the network or another agent.
+     *
+     * @param agent The agent that received the message.
+     * @param msg The message.
+     * @return Boolean representing whether the message was typed on the
+     * console.
+     */
+    public static boolean isInput(Agent agent, Message msg) {
+        return msg.getSource() == null && msg.isFrom(agent.getId()) && msg.isFor(agent.getId());
+    }
+
+    /**
+     * Reads standard input until it ends, handing every line to the attached
+     * agents.
+     */
+    private static void read() {
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = stdin.readLine()) != null) {
+                deliver(MessageType.CHAT, line.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ConsoleInput.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        deliver(MessageType.END_CHAT, null); // No more input.
+    }
+
+    /**
+     * Delivers one piece of console input to every attached agent.
+     *
+     * @param type CHAT for a typed line, or END_CHAT for the end of input.
+     * @param payload The line, or null.
+     */
+    private static void deliver(MessageType type, byte[] payload) {
+        for (Agent agent : readers) {
+            if (!agent.deliver(new Message(type, agent.getId(), agent.getId(), payload, null))) {
+                AgentLog.log(Level.WARNING, "{}[id={}]: Mailbox full, typed line dropped", agent.getClassName(),
+                        agent.getUID());
+            }
+        }
+    }
+}
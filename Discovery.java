@@ -0,0 +1,186 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Discovery class that collects every agent of one class answering a round of
+ * discovery broadcasts, along with the round-trip time of each answer.
+ *
+ * Each broadcast carries a nonce after the classname, "className#nonce", and
+ * agents echo it in their ANNOUNCE reply; see AgentSystem.answerDiscovery.
+ * Only replies carrying the nonce of one of this discovery's broadcasts are
+ * timed, each from its own broadcast, so unsolicited announcements and
+ * replies to other discoveries cannot skew the ranking.
+ */
+public class Discovery {
+
+    private static final char NONCE_SEPARATOR = '#'; // Separates the classname from the nonce; never in a classname.
+
+    private final String className; // Classname being looked for.
+    private final Map<AgentId, Responder> responders = new ConcurrentHashMap<>(); // Answers by agent UID.
+    private final Map<Long, Long> sentAt = new ConcurrentHashMap<>(); // System.nanoTime() of each broadcast by nonce.
+
+    /**
+     * Constructor for Discovery.
+     *
+     * @param name Classname of the agents to collect.
+     */
+    public Discovery(String name) {
+        className = name;
+    }
+
+    /**
+     * Records that a discovery broadcast was (re)sent.
+     *
+     * @param nonce Nonce carried by the broadcast.
+     * @param now System.nanoTime() at which the broadcast was sent.
+     */
+    void sent(long nonce, long now) {
+        sentAt.put(nonce, now);
+    }
+
+    /**
+     * Records an announcement if it answers one of this discovery's
+     * broadcasts. The round-trip time is measured from the broadcast it
+     * answers, and the fastest answer of each agent is kept.
+     *
+     * @param msg The announcement received.
+     * @param now System.nanoTime() at which the announcement was received.
+     */
+    void answered(Message msg, long now) {
+        String text = msg.getText();
+        Long sent = sentAt.get(getNonce(text));
+        if (sent != null && getClassName(text).equals(className)) {
+            Responder answer = new Responder(msg.getSenderUID(), msg.getSource(), now - sent);
+            responders.merge(answer.uid, answer, (a, b) -> a.rttNanos <= b.rttNanos ? a : b);
+        }
+    }
+
+    /**
+     * Builds the payload of a discovery broadcast or of its answer.
+     *
+     * @param className Classname looked for or announced.
+     * @param nonce Nonce of the broadcast, or 0 for none.
+     * @return String representing the payload.
+     */
+    static String withNonce(String className, long nonce) {
+        return nonce == 0 ? className : className + NONCE_SEPARATOR + nonce;
+    }
+
+    /**
+     * Retrieves the classname of a DISCOVER or ANNOUNCE payload.
+     *
+     * @param text The payload.
+     * @return String representing the classname without any nonce.
+     */
+    public static String getClassName(String text) {
+        int separator = text.indexOf(NONCE_SEPARATOR);
+        return separator < 0 ? text : text.substring(0, separator);
+    }
+
+    /**
+     * Retrieves the nonce of a DISCOVER or ANNOUNCE payload.
+     *
+     * @param text The payload.
+     * @return Long representing the nonce, or 0 if there is none.
+     */
+    static long getNonce(String text) {
+        int separator = text.indexOf(NONCE_SEPARATOR);
+        if (separator < 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(text.substring(separator + 1));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Checks whether a message is a discovery broadcast looking for agents of
+     * the given class.
+     *
+     * @param msg The message.
+     * @param className Classname of the receiving agent.
+     * @return Boolean representing whether the agent should answer.
+     */
+    public static boolean isLookingFor(Message msg, String className) {
+        return msg.getType() == MessageType.DISCOVER && getClassName(msg.getText()).equals(className);
+    }
+
+    /**
+     * Retrieves every agent that answered so far, fastest first.
+     *
+     * @return List of responders ranked by round-trip time.
+     */
+    public List<Responder> getResponders() {
+        List<Responder> ranked = new ArrayList<>(responders.values());
+        Collections.sort(ranked);
+        return ranked;
+    }
+
+    /**
+     * Responder class holding one agent that answered a discovery broadcast.
+     */
+    public static class Responder implements Comparable<Responder> {
+
+        private final AgentId uid; // UID of the agent.
+        private final InetSocketAddress address; // Address the agent answered from.
+        private final long rttNanos; // Round-trip time of the fastest answer.
+
+        /**
+         * Constructor for Responder.
+         *
+         * @param id UID of the agent.
+         * @param addr Address the agent answered from.
+         * @param rtt Round-trip time in nanoseconds.
+         */
+        Responder(AgentId id, InetSocketAddress addr, long rtt) {
+            uid = id;
+            address = addr;
+            rttNanos = rtt;
+        }
+
+        /**
+         * Retrieves the UID of the agent.
+         *
+         * @return AgentId representing the agent's UID.
+         */
+        public AgentId getUID() {
+            return uid;
+        }
+
+        /**
+         * Retrieves the address the agent answered from.
+         *
+         * @return InetSocketAddress of the agent's AgentSystem.
+         */
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Retrieves the measured round-trip time.
+         *
+         * @return Long representing the round-trip time in nanoseconds.
+         */
+        public long getRttNanos() {
+            return rttNanos;
+        }
+
+        /**
+         * Orders responders by round-trip time, fastest first.
+         *
+         * @param other The responder to compare with.
+         * @return Negative, zero or positive as this responder is faster, as fast
+         * or slower.
+         */
+        @Override
+        public int compareTo(Responder other) {
+            return Long.compare(rttNanos, other.rttNanos);
+        }
+    }
+}
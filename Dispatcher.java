@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dispatcher class that owns the single DatagramChannel of this AgentSystem.
+ * One reactor thread receives every datagram, splits it into its frames and
+ * routes each one by target agent UID to the inbox of the matching local agent;
+ * all agents send through the same channel.
+ */
+public class Dispatcher implements Runnable {
+
+    public static final String SOCKET_BUFFER_PROPERTY = "agentsystem.socketBufferBytes"; // Kernel buffer per direction.
+
+    private final DatagramChannel channel; // Channel shared by all local agents.
+    private final Selector selector; // Selector waiting for incoming datagrams.
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MessageCodec.MAX_FRAME); // Reused receive buffer.
+    private volatile boolean running = true; // Whether the reactor thread should keep running.
+    private Thread reactor; // Thread receiving and routing datagrams.
+    private volatile ReliableChannel reliable; // Handles RELIABLE envelopes and ACKs.
+    private volatile LossSimulator loss; // Drops outgoing datagrams on purpose, or null.
+    private final LongAdder datagramsSent = new LongAdder(); // Datagrams handed to the kernel.
+    private final LongAdder bytesSent = new LongAdder(); // Bytes in those datagrams.
+    private final LongAdder datagramsReceived = new LongAdder(); // Datagrams received.
+    private final LongAdder bytesReceived = new LongAdder(); // Bytes in those datagrams.
+    private final LongAdder datagramsDropped = new LongAdder(); // Datagrams whose handling threw.
+
+    /**
+     * Constructor for Dispatcher. Binds the given port, or an ephemeral port if
+     * it is already in use by another AgentSystem on this host.
+     *
+     * @param port Port to receive messages on.
+     * @throws IOException
+     */
+    public Dispatcher(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        // Room for bursts of fragments; the kernel caps this at net.core.rmem_max and wmem_max.
+        int socketBuffer = Integer.getInteger(SOCKET_BUFFER_PROPERTY, 4 << 20);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBuffer);
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (BindException ex) {
+            // Another AgentSystem owns the port: this one can still reach it and receive replies.
+            channel.bind(new InetSocketAddress(0));
+            Logger.getLogger(Dispatcher.class.getName()).log(Level.WARNING,
+                    "Port {0} in use, receiving on {1}", new Object[]{String.valueOf(port), channel.getLocalAddress()});
+        }
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Starts the reactor thread.
+     */
+    public void start() {
+        reactor = new Thread(this, "agent-dispatcher");
+        reactor.setDaemon(true);
+        reactor.start();
+    }
+
+    /**
+     * Receives datagrams until this dispatcher is closed and routes each one to
+     * its target agents. A datagram whose handling throws is dropped and
+     * counted, so that one bad datagram or agent hook cannot stop receiving.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                SocketAddress from;
+                while ((from = channel.receive(receiveBuffer)) != null) {
+                    try {
+                        receiveBuffer.flip();
+                        datagramsReceived.increment();
+                        bytesReceived.add(receiveBuffer.remaining());
+                        dispatch((InetSocketAddress) from);
+                    } catch (RuntimeException ex) {
+                        datagramsDropped.increment();
+                        AgentLog.log(Level.SEVERE, "Dispatcher: Dropped datagram from {}: {}", from, ex);
+                    } finally {
+                        receiveBuffer.clear();
+                    }
+                }
+                if (reliable != null) {
+                    reliable.flushAcks(); // One ACK per peer for the whole burst.
+                }
+            } catch (IOException | ClosedSelectorException ex) {
+                if (running) {
+                    Logger.getLogger(Dispatcher.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            } catch (RuntimeException ex) {
+                Logger.getLogger(Dispatcher.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Routes every frame of the datagram in the receive buffer.
+     *
+     * @param from Address the datagram was received from.
+     */
+    private void dispatch(InetSocketAddress from) {
+        if (MessageCodec.isTextMode()) {
+            byte[] data = new byte[receiveBuffer.remaining()];
+            receiveBuffer.get(data);
+            AgentSystem.route(MessageCodec.decodeText(new String(data, StandardCharsets.UTF_8), from));
+            return;
+        }
+        // A datagram holds one frame, or several if the sender batches.
+        while (MessageCodec.isFrame(receiveBuffer)) {
+            MessageType type = MessageCodec.type(receiveBuffer);
+            if (type == MessageType.RELIABLE && reliable != null) {
+                reliable.receive(receiveBuffer, from);
+            } else if (type == MessageType.ACK && reliable != null) {
+                reliable.acknowledge(receiveBuffer, from);
+            } else {
+                Message msg = MessageView.read(receiveBuffer, from);
+                if (msg != null) {
+                    AgentSystem.route(msg);
+                    msg.release(); // The agents it was delivered to hold their own references.
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends an encoded frame through the shared channel. The channel may be
+     * used by any number of threads at once, so no lock is taken. The frame's
+     * position is left unchanged so that it can be sent again.
+     *
+     * @param frame Buffer holding a binary frame between its position and
+     * limit.
+     * @param address The address to send the frame to.
+     */
+    public void send(ByteBuffer frame, InetSocketAddress address) {
+        LossSimulator simulator = loss;
+        if (simulator != null && simulator.drop()) {
+            return; // Lost on purpose.
+        }
+        int start = frame.position();
+        try {
+            ByteBuffer out = frame;
+            if (MessageCodec.isTextMode()) {
+                // Older AgentSystems only understand the text format.
+                Message msg = MessageCodec.decode(frame, null);
+                out = ByteBuffer.wrap(MessageCodec.encodeText(msg).getBytes(StandardCharsets.UTF_8));
+            }
+            int size = out.remaining();
+            if (channel.send(out, address) == 0) {
+                Logger.getLogger(Dispatcher.class.getName()).log(Level.WARNING,
+                        "Send buffer full, dropped message to {0}", address);
+            } else {
+                datagramsSent.increment();
+                bytesSent.add(size);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Dispatcher.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            frame.position(start);
+        }
+    }
+
+    /**
+     * Retrieves the number of datagrams sent.
+     *
+     * @return Long representing the datagram count.
+     */
+    public long getDatagramsSent() {
+        return datagramsSent.sum();
+    }
+
+    /**
+     * Retrieves the number of bytes sent, counting whole datagrams.
+     *
+     * @return Long representing the byte count.
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Retrieves the number of datagrams received.
+     *
+     * @return Long representing the datagram count.
+     */
+    public long getDatagramsReceived() {
+        return datagramsReceived.sum();
+    }
+
+    /**
+     * Retrieves the number of bytes received, counting whole datagrams.
+     *
+     * @return Long representing the byte count.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Retrieves the number of datagrams dropped because handling them threw.
+     *
+     * @return Long representing the drop count.
+     */
+    public long getDatagramDrops() {
+        return datagramsDropped.sum();
+    }
+
+    /**
+     * Joins an IP multicast group on every interface that supports
+     * multicast, so that messages sent to the group reach this dispatcher.
+     * Only a dispatcher bound to the AgentSystem port receives them.
+     *
+     * @param group The multicast group address.
+     * @return Boolean representing whether the group was joined on at least
+     * one interface.
+     */
+    public boolean joinGroup(InetAddress group) {
+        boolean joined = false;
+        try {
+            for (NetworkInterface ni : NetworkInterface.networkInterfaces().toArray(NetworkInterface[]::new)) {
+                if (ni.isUp() && ni.supportsMulticast()) {
+                    try {
+                        channel.join(group, ni);
+                        joined = true;
+                    } catch (IOException | UnsupportedOperationException ex) {
+                        Logger.getLogger(Dispatcher.class.getName()).log(Level.FINE, null, ex);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Dispatcher.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return joined;
+    }
+
+    /**
+     * Sets the reliable channel that handles RELIABLE envelopes and ACKs
+     * received by this dispatcher.
+     *
+     * @param channel ReliableChannel to hand envelopes and ACKs to.
+     */
+    public void setReliableChannel(ReliableChannel channel) {
+        reliable = channel;
+    }
+
+    /**
+     * Sets a loss simulator that drops outgoing datagrams, to test
+     * retransmission on a network that loses nothing.
+     *
+     * @param simulator LossSimulator to consult for every datagram, or null
+     * to drop nothing.
+     */
+    public void setLossSimulator(LossSimulator simulator) {
+        loss = simulator;
+    }
+
+    /**
+     * Checks whether the calling thread is the reactor thread, which must
+     * never wait for messages it would itself have to receive.
+     *
+     * @return Boolean representing whether this is the reactor thread.
+     */
+    public boolean isReactorThread() {
+        return Thread.currentThread() == reactor;
+    }
+
+    /**
+     * Retrieves the port this dispatcher receives messages on.
+     *
+     * @return Integer representing the bound port.
+     */
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops the reactor thread and closes the channel.
+     */
+    public void close() {
+        running = false;
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Dispatcher.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
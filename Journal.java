@@ -0,0 +1,706 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Journal class that appends every message sent and received to
+ * memory-mapped segment files, so that an agent can replay them after a
+ * restart. Each message gets the next offset, counting from 0 across all
+ * segments.
+ *
+ * Appending reserves space in the current segment while holding a lock for
+ * a few field updates only; the record is then copied into the mapping
+ * without it, and published by writing its length last. Nothing is written
+ * to the disk on the caller's thread: the "agent-journal" thread forces what
+ * was appended to the disk every "agentsystem.journal.syncMs", one flush for
+ * every message appended in between. Messages appended since the last flush
+ * are lost if the machine crashes, but not if only the JVM does.
+ *
+ * A segment holds "agentsystem.journal.segmentBytes" bytes and is named
+ * after the offset of its first message; when a message does not fit, the
+ * next segment is started. Every segment has an index file recording the
+ * position of one message in every INDEX_INTERVAL bytes, so replay starts
+ * close to the requested offset rather than scanning its segment from the
+ * start. A record, padded to a multiple of 8 bytes, is its length, a CRC32C
+ * of the rest, its offset, the time
+ * it was appended, whether it was sent or received, the message type, the
+ * sender and target UIDs, and the payload. On opening, the last segment is
+ * scanned to the first record that is incomplete or fails its checksum, and
+ * appending continues there.
+ */
+public class Journal {
+
+    public static final String DIR_PROPERTY = "agentsystem.journal.dir"; // Where segments are kept; unset = no journal.
+    public static final String SEGMENT_PROPERTY = "agentsystem.journal.segmentBytes"; // Size of a segment.
+    public static final String SYNC_PROPERTY = "agentsystem.journal.syncMs"; // Group commit period, 0 = leave to the OS.
+
+    public static final byte RECEIVED = 0; // Record of a message received from another AgentSystem.
+    public static final byte SENT = 1; // Record of a message sent by a local agent.
+
+    private static final int HEADER_SIZE = 58; // Bytes of a record before its payload.
+    private static final int INDEX_INTERVAL = 4096; // Bytes of records per index entry.
+    private static final int INDEX_ENTRY = 8; // Relative offset and position, an int each.
+    private static final int CHECKSUM_STRIPES = 16; // Checksums kept per segment, a power of two.
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path dir; // Directory holding the segments.
+    private final int segmentBytes; // Capacity of every new segment.
+    private final TreeMap<Long, Path> segments = new TreeMap<>(); // Segment files by first offset.
+    private final List<Segment> unsynced = new CopyOnWriteArrayList<>(); // Segments that may hold unforced records.
+    private Segment active; // Segment being appended to.
+    private long nextOffset; // Offset of the next message appended.
+    private final Thread syncer; // Forces appended records to the disk, or null.
+    private volatile boolean closed; // Whether close() was called.
+
+    /**
+     * Constructor for Journal, which opens the journal in a directory,
+     * creating it if needed, and continues after the last complete record.
+     *
+     * @param directory Directory holding the segments.
+     * @param segmentSize Size of a segment file in bytes.
+     * @param syncMs Milliseconds between flushes to the disk, or 0 to leave
+     * flushing to the operating system.
+     * @throws IOException if the directory or a segment cannot be opened.
+     */
+    public Journal(Path directory, int segmentSize, long syncMs) throws IOException {
+        dir = directory;
+        segmentBytes = Math.max(segmentSize, HEADER_SIZE + INDEX_INTERVAL);
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(0, name.length() - 4)), file);
+            }
+        }
+        if (segments.isEmpty()) {
+            active = Segment.create(dir, 0, segmentBytes);
+            segments.put(0L, active.file);
+        } else {
+            active = Segment.open(segments.lastEntry().getValue(), segments.lastKey(), false, segmentBytes);
+            nextOffset = active.recover();
+        }
+        unsynced.add(active);
+        if (syncMs > 0) {
+            syncer = new Thread(() -> syncEvery(syncMs), "agent-journal");
+            syncer.setDaemon(true);
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Opens the journal configured by "agentsystem.journal.dir", if any.
+     *
+     * @return Journal opened, or null if none is configured or it could not
+     * be opened.
+     */
+    public static Journal open() {
+        String directory = System.getProperty(DIR_PROPERTY);
+        if (directory == null) {
+            return null;
+        }
+        try {
+            return new Journal(Path.of(directory), Integer.getInteger(SEGMENT_PROPERTY, 64 << 20),
+                    Long.getLong(SYNC_PROPERTY, 10));
+        } catch (IOException ex) {
+            Logger.getLogger(Journal.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
+    }
+
+    /**
+     * Appends a message.
+     *
+     * @param direction SENT or RECEIVED.
+     * @param type Kind of message.
+     * @param sender UID of the agent that sent the message.
+     * @param target UID of the agent the message is for.
+     * @param payload The payload, or null for none.
+     * @return Long representing the message's offset, or -1 if the journal
+     * is closed or the message is larger than a segment.
+     */
+    public long append(byte direction, MessageType type, AgentId sender, AgentId target, byte[] payload) {
+        return append(direction, type, sender, target, payload == null ? null : ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Appends a message. The payload buffer's position is left unchanged.
+     *
+     * @param direction SENT or RECEIVED.
+     * @param type Kind of message.
+     * @param sender UID of the agent that sent the message.
+     * @param target UID of the agent the message is for.
+     * @param payload Buffer holding the payload between its position and
+     * limit, or null for none.
+     * @return Long representing the message's offset, or -1 if the journal
+     * is closed or the message is larger than a segment.
+     */
+    public long append(byte direction, MessageType type, AgentId sender, AgentId target, ByteBuffer payload) {
+        return payload == null ? append(direction, type, sender, target, null, 0, 0)
+                : append(direction, type, sender, target, payload, payload.position(), payload.remaining());
+    }
+
+    /**
+     * Appends a message whose payload is part of a buffer, e.g. of a frame
+     * that has been encoded for sending. The buffer's position is left
+     * unchanged.
+     *
+     * @param direction SENT or RECEIVED.
+     * @param type Kind of message.
+     * @param sender UID of the agent that sent the message.
+     * @param target UID of the agent the message is for.
+     * @param buf Buffer holding the payload, or null for none.
+     * @param start Index of the first payload byte in the buffer.
+     * @param length Number of payload bytes.
+     * @return Long representing the message's offset, or -1 if the journal
+     * is closed or the message is larger than a segment.
+     */
+    public long append(byte direction, MessageType type, AgentId sender, AgentId target, ByteBuffer buf, int start,
+            int length) {
+        int size = HEADER_SIZE + length;
+        Segment segment;
+        int pos;
+        long offset;
+        synchronized (this) {
+            if (closed || size > segmentBytes) {
+                return -1;
+            }
+            if (active.position + size > active.buffer.capacity() && !roll()) {
+                return -1;
+            }
+            segment = active;
+            offset = nextOffset++;
+            pos = segment.position;
+            segment.position += align(size);
+            segment.writers.incrementAndGet();
+            segment.index(offset, pos);
+        }
+        try {
+            MappedByteBuffer out = segment.buffer;
+            out.putLong(pos + 8, offset);
+            out.putLong(pos + 16, System.currentTimeMillis());
+            out.put(pos + 24, direction);
+            out.put(pos + 25, type.code());
+            out.putLong(pos + 26, sender.getMostSignificantBits());
+            out.putLong(pos + 34, sender.getLeastSignificantBits());
+            out.putLong(pos + 42, target.getMostSignificantBits());
+            out.putLong(pos + 50, target.getLeastSignificantBits());
+            if (length > 0) {
+                out.put(pos + HEADER_SIZE, buf, start, length);
+            }
+            out.putInt(pos + 4, segment.checksum(pos, size));
+            INT.setRelease(out, pos, size); // Publishes the record.
+        } finally {
+            segment.writers.decrementAndGet();
+        }
+        return offset;
+    }
+
+    /**
+     * Appends a text message.
+     *
+     * @param direction SENT or RECEIVED.
+     * @param type Kind of message.
+     * @param sender UID of the agent that sent the message.
+     * @param target UID of the agent the message is for.
+     * @param text The text, or null for no payload.
+     * @return Long representing the message's offset, or -1 if the journal
+     * is closed or the message is larger than a segment.
+     */
+    public long append(byte direction, MessageType type, AgentId sender, AgentId target, String text) {
+        return append(direction, type, sender, target, text == null ? null : text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Hands every journaled message from an offset on to a consumer, oldest
+     * first, e.g. to rebuild an agent's state at startup. Messages appended
+     * while replaying may or may not be included.
+     *
+     * @param from Offset of the first message wanted; earlier offsets that
+     * are no longer kept are skipped.
+     * @param consumer Receives each message.
+     * @return Long representing the offset after the last message replayed.
+     */
+    public long replay(long from, Consumer<Entry> consumer) {
+        List<Map.Entry<Long, Path>> files;
+        Segment current;
+        int currentIndexed;
+        synchronized (this) {
+            Long first = segments.floorKey(from);
+            files = new ArrayList<>((first == null ? segments : segments.tailMap(first, true)).entrySet());
+            current = active;
+            currentIndexed = active.indexed; // Later entries may still be being written.
+        }
+        long next = from;
+        for (Map.Entry<Long, Path> file : files) {
+            try {
+                if (file.getKey() == current.base) {
+                    next = Math.max(next, current.replay(from, currentIndexed, consumer));
+                } else {
+                    Segment sealed = Segment.open(file.getValue(), file.getKey(), true, 0);
+                    next = Math.max(next, sealed.replay(from, sealed.index.capacity() / INDEX_ENTRY, consumer));
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(Journal.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Retrieves the offset the next appended message will get.
+     *
+     * @return Long representing the next offset.
+     */
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Forces every record appended so far to the disk.
+     */
+    public void sync() {
+        for (Segment segment : unsynced) {
+            int end;
+            boolean copying;
+            boolean sealed;
+            synchronized (this) {
+                end = segment.position;
+                copying = segment.writers.get() > 0; // Records before end may not be complete yet.
+                sealed = segment != active;
+            }
+            segment.force(end, !copying);
+            if (sealed && !copying) {
+                unsynced.remove(segment); // Nothing more will be written to it.
+            }
+        }
+    }
+
+    /**
+     * Stops appending and forces everything appended to the disk.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (syncer != null) {
+            syncer.interrupt();
+        }
+        while (active.writers.get() > 0) {
+            Thread.onSpinWait(); // Let appends in progress finish their copy.
+        }
+        sync();
+    }
+
+    /**
+     * Starts the next segment, sealing the active one.
+     *
+     * @return Boolean representing whether the next segment could be created.
+     */
+    private boolean roll() {
+        try {
+            Segment next = Segment.create(dir, nextOffset, segmentBytes);
+            segments.put(nextOffset, next.file);
+            active = next;
+            unsynced.add(next);
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(Journal.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return false;
+    }
+
+    /**
+     * Forces appended records to the disk at a fixed period until closed, on
+     * the "agent-journal" thread.
+     *
+     * @param syncMs Milliseconds between flushes.
+     */
+    private void syncEvery(long syncMs) {
+        while (!closed) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(syncMs);
+            } catch (InterruptedException ex) {
+                return; // Closed.
+            }
+            sync();
+        }
+    }
+
+    /**
+     * Rounds a record size up so that the next record starts 8-byte aligned,
+     * as publishing its length atomically requires.
+     *
+     * @param size Size of a record.
+     * @return Integer representing the space the record takes.
+     */
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * Segment class that is one mapped segment file and its index.
+     */
+    private static final class Segment {
+
+        private final Path file; // The segment file.
+        private final long base; // Offset of the segment's first message.
+        private final MappedByteBuffer buffer; // Mapping of the segment file.
+        private final MappedByteBuffer index; // Mapping of the index file.
+        private final boolean readOnly; // Whether the segment is only read.
+        private int position; // Where the next record goes; guarded by the Journal.
+        private int indexed; // Index entries written; guarded by the Journal.
+        private int nextIndexedPosition; // Position from which the next record is indexed.
+        private int forced; // Position up to which records were forced to the disk.
+        private final AtomicInteger writers = new AtomicInteger(); // Appends still copying into the segment.
+        private final AtomicReferenceArray<Checksum> checksums = new AtomicReferenceArray<>(CHECKSUM_STRIPES); // Reused checksums.
+
+        /**
+         * Constructor for Segment.
+         *
+         * @param path The segment file.
+         * @param first Offset of the segment's first message.
+         * @param data Mapping of the segment file.
+         * @param offsets Mapping of the index file.
+         * @param onlyRead Whether the segment is only read.
+         */
+        private Segment(Path path, long first, MappedByteBuffer data, MappedByteBuffer offsets, boolean onlyRead) {
+            file = path;
+            base = first;
+            buffer = data;
+            index = offsets;
+            readOnly = onlyRead;
+        }
+
+        /**
+         * Creates an empty segment.
+         *
+         * @param dir Directory holding the segments.
+         * @param first Offset of the segment's first message.
+         * @param size Size of the segment file.
+         * @return Segment created.
+         * @throws IOException if the files cannot be created.
+         */
+        static Segment create(Path dir, long first, int size) throws IOException {
+            Path path = dir.resolve(String.format("%020d.log", first));
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(indexFile(path));
+            return open(path, first, false, size);
+        }
+
+        /**
+         * Maps a segment and its index.
+         *
+         * @param path The segment file.
+         * @param first Offset of the segment's first message.
+         * @param onlyRead Whether the segment is only read.
+         * @param newSize Size to give the segment file if it is empty.
+         * @return Segment opened.
+         * @throws IOException if the files cannot be mapped.
+         */
+        static Segment open(Path path, long first, boolean onlyRead, int newSize) throws IOException {
+            String mode = onlyRead ? "r" : "rw";
+            FileChannel.MapMode map = onlyRead ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+            try (RandomAccessFile data = new RandomAccessFile(path.toFile(), mode);
+                    RandomAccessFile offsets = new RandomAccessFile(indexFile(path).toFile(), mode)) {
+                int size = (int) (data.length() > 0 ? data.length() : newSize);
+                if (!onlyRead) {
+                    data.setLength(size); // The mapping stays valid after the file is closed.
+                    offsets.setLength((long) (size / INDEX_INTERVAL + 2) * INDEX_ENTRY);
+                }
+                return new Segment(path, first, data.getChannel().map(map, 0, size),
+                        offsets.getChannel().map(map, 0, offsets.length()), onlyRead);
+            }
+        }
+
+        /**
+         * Retrieves the index file of a segment.
+         *
+         * @param path The segment file.
+         * @return Path of the index file.
+         */
+        static Path indexFile(Path path) {
+            String name = path.getFileName().toString();
+            return path.resolveSibling(name.substring(0, name.length() - 4) + ".index");
+        }
+
+        /**
+         * Records the position of a message in the index if the previous entry
+         * is at least INDEX_INTERVAL bytes back.
+         *
+         * @param offset Offset of the message.
+         * @param pos Position of its record.
+         */
+        void index(long offset, int pos) {
+            if (pos >= nextIndexedPosition && (indexed + 1) * INDEX_ENTRY <= index.capacity()) {
+                index.putInt(indexed * INDEX_ENTRY, (int) (offset - base));
+                index.putInt(indexed * INDEX_ENTRY + 4, pos);
+                indexed++;
+                nextIndexedPosition = pos + INDEX_INTERVAL;
+            }
+        }
+
+        /**
+         * Finds where to start reading for a message: the last indexed
+         * message at or before it.
+         *
+         * @param offset Offset of the message.
+         * @param entries Number of index entries that may be used.
+         * @return Integer representing the index entry to start from.
+         */
+        int seek(long offset, int entries) {
+            int low = 1;
+            int high = Math.min(entries, index.capacity() / INDEX_ENTRY) - 1;
+            int found = 0; // The first record is always indexed.
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int entry = mid * INDEX_ENTRY;
+                boolean used = index.getInt(entry + 4) > 0; // Unused entries are all zero.
+                if (used && base + index.getInt(entry) <= offset) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Finds the end of the records of a segment that was being appended
+         * to, rebuilding its index. Everything after the last complete record
+         * is zeroed, since records written past a torn one would otherwise be
+         * found again, with valid offsets and checksums, once new appends
+         * reach them.
+         *
+         * @return Long representing the offset after the last complete record.
+         */
+        long recover() {
+            long offset = base;
+            int pos = 0;
+            for (int size; (size = validAt(pos, offset)) > 0; pos += align(size)) {
+                index(offset++, pos);
+            }
+            position = pos;
+            int end = buffer.capacity();
+            for (; pos < end && (pos & 7) != 0; pos++) {
+                buffer.put(pos, (byte) 0);
+            }
+            for (; pos + 8 <= end; pos += 8) {
+                if (buffer.getLong(pos) != 0) { // Only write pages that hold data, keeping the rest unallocated.
+                    buffer.putLong(pos, 0);
+                }
+            }
+            for (; pos < end; pos++) {
+                buffer.put(pos, (byte) 0);
+            }
+            for (int entry = indexed * INDEX_ENTRY; entry < index.capacity(); entry++) {
+                index.put(entry, (byte) 0); // Forget entries of records that were lost.
+            }
+            return offset;
+        }
+
+        /**
+         * Computes the checksum of a record, covering everything after the
+         * checksum field. Appending threads take a Checksum from the stripe
+         * of their thread and put it back after, so that checksumming
+         * allocates nothing unless two threads of the same stripe overlap.
+         *
+         * @param pos Position of the record.
+         * @param size Size of the record.
+         * @return Integer representing the CRC32C of the record.
+         */
+        int checksum(int pos, int size) {
+            int stripe = (int) Thread.currentThread().getId() & (CHECKSUM_STRIPES - 1);
+            Checksum checksum = checksums.getAndSet(stripe, null);
+            if (checksum == null) {
+                checksum = new Checksum(buffer);
+            }
+            int value = checksum.of(pos, size);
+            checksums.lazySet(stripe, checksum);
+            return value;
+        }
+
+        /**
+         * Checks that a complete, intact record of the expected offset is at
+         * a position.
+         *
+         * @param pos Position of the record.
+         * @param offset Expected offset.
+         * @return Integer representing the record's size, or 0 if there is no
+         * valid record.
+         */
+        int validAt(int pos, long offset) {
+            if (pos + HEADER_SIZE > buffer.capacity()) {
+                return 0;
+            }
+            int size = (int) INT.getAcquire(buffer, pos);
+            if (size < HEADER_SIZE || pos + size > buffer.capacity() || buffer.getLong(pos + 8) != offset
+                    || buffer.getInt(pos + 4) != checksum(pos, size)) {
+                return 0;
+            }
+            return size;
+        }
+
+        /**
+         * Hands the messages of this segment from an offset on to a consumer.
+         *
+         * @param from Offset of the first message wanted.
+         * @param entries Number of index entries that may be used.
+         * @param consumer Receives each message.
+         * @return Long representing the offset after the last record read.
+         */
+        long replay(long from, int entries, Consumer<Entry> consumer) {
+            int entry = seek(from, entries) * INDEX_ENTRY;
+            long offset = base + index.getInt(entry);
+            int pos = index.getInt(entry + 4);
+            for (int size; (size = validAt(pos, offset)) > 0; pos += align(size), offset++) {
+                if (offset >= from) {
+                    consumer.accept(new Entry(buffer, pos, size));
+                }
+            }
+            return offset;
+        }
+
+        /**
+         * Forces the records appended since the last complete flush to the
+         * disk.
+         *
+         * @param end Position after the last record reserved.
+         * @param complete Whether every record before end has been written,
+         * so the next flush can start at end.
+         */
+        void force(int end, boolean complete) {
+            if (!readOnly && end > forced) {
+                buffer.force(forced, end - forced);
+                index.force();
+                if (complete) {
+                    forced = end;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checksum class that is a reusable CRC32C over a segment, read through a
+     * view of its mapping whose position and limit are set per record.
+     */
+    private static final class Checksum {
+
+        private final CRC32C crc = new CRC32C(); // Reset before every record.
+        private final ByteBuffer view; // Duplicate of the segment mapping.
+
+        /**
+         * Constructor for Checksum.
+         *
+         * @param mapping Mapping of the segment.
+         */
+        Checksum(ByteBuffer mapping) {
+            view = mapping.duplicate();
+        }
+
+        /**
+         * Computes the checksum of a record, covering everything after the
+         * checksum field.
+         *
+         * @param pos Position of the record.
+         * @param size Size of the record.
+         * @return Integer representing the CRC32C of the record.
+         */
+        int of(int pos, int size) {
+            crc.reset();
+            view.clear();
+            view.position(pos + 8).limit(pos + size);
+            crc.update(view);
+            return (int) crc.getValue();
+        }
+    }
+
+    /**
+     * Entry class that is one journaled message, as handed out by replay.
+     */
+    public static final class Entry {
+
+        private final long offset; // Offset of the message.
+        private final long time; // System.currentTimeMillis() when it was appended.
+        private final boolean sent; // Whether it was sent rather than received.
+        private final Message message; // The message, with no source address.
+
+        /**
+         * Constructor for Entry, which copies a record out of a segment.
+         *
+         * @param buf Mapping of the segment.
+         * @param pos Position of the record.
+         * @param size Size of the record.
+         */
+        private Entry(ByteBuffer buf, int pos, int size) {
+            offset = buf.getLong(pos + 8);
+            time = buf.getLong(pos + 16);
+            sent = buf.get(pos + 24) == SENT;
+            byte[] payload = new byte[size - HEADER_SIZE];
+            buf.get(pos + HEADER_SIZE, payload);
+            message = new Message(MessageType.fromCode(buf.get(pos + 25)),
+                    new AgentId(buf.getLong(pos + 26), buf.getLong(pos + 34)),
+                    new AgentId(buf.getLong(pos + 42), buf.getLong(pos + 50)), payload, null);
+        }
+
+        /**
+         * Retrieves the offset of this message in the journal.
+         *
+         * @return Long representing the offset.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Retrieves when this message was journaled.
+         *
+         * @return Long representing System.currentTimeMillis() at the time.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Checks whether this message was sent by a local agent rather than
+         * received from another AgentSystem.
+         *
+         * @return Boolean representing whether the message was sent.
+         */
+        public boolean isSent() {
+            return sent;
+        }
+
+        /**
+         * Retrieves the journaled message.
+         *
+         * @return Message as it was sent or received.
+         */
+        public Message getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyRecorder class that records latencies into a fixed set of
+ * log-linear buckets, in the style of HdrHistogram. Values below 128 are
+ * exact; larger values are kept to within 1% by splitting every power of two
+ * into 128 sub-buckets. Recording never allocates and is safe from any number
+ * of threads.
+ */
+public class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 7; // Sub-buckets per power of two, as a power of two.
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 - SUB_BUCKET_BITS; // Covers every non-negative long.
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * SUB_BUCKETS); // Count per bucket.
+    private final LongAdder total = new LongAdder(); // Number of recorded values, striped across threads.
+    private final AtomicLong max = new AtomicLong(); // Largest recorded value.
+
+    /**
+     * Records a value, such as a latency in nanoseconds.
+     *
+     * @param value The value to record. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(index(v));
+        total.increment();
+        long seen = max.get();
+        while (v > seen && !max.compareAndSet(seen, v)) {
+            seen = max.get();
+        }
+    }
+
+    /**
+     * Retrieves the number of recorded values.
+     *
+     * @return Long representing how many values were recorded.
+     */
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * Retrieves the largest recorded value.
+     *
+     * @return Long representing the maximum, or 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Retrieves the value below which the given percentage of the recorded
+     * values fall.
+     *
+     * @param percentile Percentage between 0 and 100, e.g. 99.9.
+     * @return Long representing the highest value of the bucket holding that
+     * percentile, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        max.set(0);
+    }
+
+    /**
+     * Summarizes the recorded values in microseconds.
+     *
+     * @return String listing the count, p50, p99, p99.9 and maximum.
+     */
+    public String summarizeMicros() {
+        return String.format("n=%d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus", getCount(),
+                getValueAtPercentile(50) / 1000.0, getValueAtPercentile(99) / 1000.0,
+                getValueAtPercentile(99.9) / 1000.0, getMax() / 1000.0);
+    }
+
+    /**
+     * Finds the bucket of a value.
+     *
+     * @param value A non-negative value.
+     * @return Integer representing the bucket index.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value; // Exact.
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Finds the highest value that falls into a bucket.
+     *
+     * @param index Bucket index.
+     * @return Long representing the largest value of that bucket.
+     */
+    private static long highestValue(int index) {
+        int bucket = index / SUB_BUCKETS;
+        long sub = index % SUB_BUCKETS;
+        if (bucket == 0) {
+            return sub;
+        }
+        int shift = bucket - 1;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
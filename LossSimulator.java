@@ -0,0 +1,55 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LossSimulator class that makes the Dispatcher drop a share of outgoing
+ * datagrams at random, so that retransmission can be exercised on a single
+ * host where the network never loses anything.
+ */
+public class LossSimulator {
+
+    public static final String RATE_PROPERTY = "agentsystem.lossRate"; // Share of datagrams to drop.
+
+    private final double rate; // Probability of dropping a datagram, 0 to 1.
+    private final LongAdder dropped = new LongAdder(); // Datagrams dropped so far.
+
+    /**
+     * Constructor for LossSimulator.
+     *
+     * @param lossRate Probability of dropping a datagram, from 0 to 1.
+     */
+    public LossSimulator(double lossRate) {
+        rate = lossRate;
+    }
+
+    /**
+     * Decides whether the next datagram is lost.
+     *
+     * @return Boolean representing whether to drop the datagram.
+     */
+    public boolean drop() {
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            dropped.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves the probability of dropping a datagram.
+     *
+     * @return Double representing the loss rate.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Retrieves the number of datagrams dropped so far.
+     *
+     * @return Long representing the drop count.
+     */
+    public long getDropCount() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,230 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Mailbox class that holds the messages routed to one agent in a bounded,
+ * lock-free ring buffer. Any number of threads may deliver messages while the
+ * agent's own thread takes them. When the ring is full, the overflow policy
+ * decides whether the oldest message is dropped, the new one is dropped, or the
+ * new one is rejected so that the sender can be told to back off.
+ *
+ * Messages wait in a Ring, Dmitry Vyukov's bounded queue, so neither the
+ * producers nor the consumer ever take a lock.
+ */
+public class Mailbox {
+
+    public static final String CAPACITY_PROPERTY = "agentsystem.mailbox.capacity"; // Default capacity.
+    public static final String POLICY_PROPERTY = "agentsystem.mailbox.policy"; // Default overflow policy.
+    public static final int MAX_CAPACITY = Ring.MAX_CAPACITY; // Largest capacity, the largest int power of two.
+
+    /**
+     * What to do with a message delivered to a full mailbox.
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST, // Make room by dropping the oldest waiting message.
+        DROP_NEWEST, // Drop the message being delivered.
+        BACKPRESSURE // Reject the message being delivered so the sender can be told.
+    }
+
+    private final Ring<Message> ring; // Messages waiting.
+    private final OverflowPolicy policy; // What to do when full.
+    private final LongAdder dropped = new LongAdder(); // Messages dropped because the mailbox was full.
+    private final LongAdder rejected = new LongAdder(); // Messages rejected for backpressure.
+    private final LongAdder refused = new LongAdder(); // Messages turned away because the mailbox was closed.
+    private volatile Thread waiter; // Consumer thread parked waiting for a message.
+    private volatile boolean closed; // Whether new messages are turned away.
+
+    /**
+     * Constructor for Mailbox with the capacity and policy given by the
+     * "agentsystem.mailbox.capacity" and "agentsystem.mailbox.policy" system
+     * properties.
+     */
+    public Mailbox() {
+        this(Integer.getInteger(CAPACITY_PROPERTY, 1024),
+                OverflowPolicy.valueOf(System.getProperty(POLICY_PROPERTY, "DROP_NEWEST").toUpperCase()));
+    }
+
+    /**
+     * Constructor for Mailbox.
+     *
+     * @param capacity Maximum number of waiting messages, rounded up to a power
+     * of two, at least 2, so the mailbox may hold more than asked for; see
+     * getCapacity.
+     * @param overflow What to do with a message delivered while full.
+     */
+    public Mailbox(int capacity, OverflowPolicy overflow) {
+        ring = new Ring<>(capacity);
+        policy = overflow;
+    }
+
+    /**
+     * Delivers a message, applying the overflow policy if the mailbox is full.
+     *
+     * @param msg The message to deliver.
+     * @return Boolean representing whether the message was accepted.
+     */
+    public boolean offer(Message msg) {
+        if (closed) {
+            refused.increment();
+            return false;
+        }
+        while (!ring.offer(msg)) {
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                Message oldest = ring.poll(); // Producers may take from the head too.
+                if (oldest != null) {
+                    oldest.release(); // The agent will never see it.
+                    dropped.increment();
+                }
+            } else {
+                if (policy == OverflowPolicy.BACKPRESSURE) {
+                    rejected.increment();
+                } else {
+                    dropped.increment();
+                }
+                return false;
+            }
+        }
+        Thread parked = waiter;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next message without waiting.
+     *
+     * @return Message taken, or null if the mailbox is empty.
+     */
+    public Message poll() {
+        return ring.poll();
+    }
+
+    /**
+     * Waits for the next message.
+     *
+     * @return Message taken, or null if the mailbox is closed and empty.
+     * @throws InterruptedException
+     */
+    public Message take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits at most the given time for the next message.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return Message taken, or null if none arrived in time or the mailbox
+     * is closed and empty.
+     * @throws InterruptedException
+     */
+    public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Message msg = ring.poll();
+        if (msg != null) {
+            return msg;
+        }
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        waiter = Thread.currentThread();
+        try {
+            while ((msg = ring.poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || closed) {
+                    return ring.poll(); // Timed out, or drained: catch a message delivered meanwhile.
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return msg;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Closes this mailbox: new messages are dropped, and a consumer waiting
+     * for one returns null once the waiting messages have been taken.
+     */
+    public void close() {
+        closed = true;
+        Thread parked = waiter;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+
+    /**
+     * Opens this mailbox again after close.
+     */
+    public void open() {
+        closed = false;
+    }
+
+    /**
+     * Checks whether this mailbox is closed.
+     *
+     * @return Boolean representing whether new messages are dropped.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Retrieves the number of messages waiting.
+     *
+     * @return Integer representing the queue depth.
+     */
+    public int getDepth() {
+        return ring.size();
+    }
+
+    /**
+     * Retrieves the maximum number of waiting messages: the configured
+     * capacity rounded up to a power of two.
+     *
+     * @return Integer representing the effective capacity.
+     */
+    public int getCapacity() {
+        return ring.getCapacity();
+    }
+
+    /**
+     * Retrieves the number of messages dropped because the mailbox was full.
+     *
+     * @return Long representing the drop count.
+     */
+    public long getDropCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Retrieves the number of messages rejected to signal backpressure.
+     *
+     * @return Long representing the reject count.
+     */
+    public long getRejectCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Retrieves the number of messages turned away because the mailbox was
+     * closed, e.g. while its agent was stopping.
+     *
+     * @return Long representing the refuse count.
+     */
+    public long getRefuseCount() {
+        return refused.sum();
+    }
+
+    /**
+     * Retrieves what happens to messages delivered while full.
+     *
+     * @return OverflowPolicy of this mailbox.
+     */
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+}
@@ -0,0 +1,190 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message class representing a single message routed between agents. Each
+ * message has a type, the UIDs of its sender and target agents, and a payload.
+ * A target UID of Message.BROADCAST is delivered to every agent. See
+ * MessageCodec for the wire format.
+ *
+ * Messages received from the network may be MessageViews over pooled
+ * buffers. An agent that is done with a message calls release() so that its
+ * buffer can be reused; it must not touch the message afterwards.
+ */
+public class Message {
+
+    public static final AgentId BROADCAST = AgentId.BROADCAST; // Target UID of a broadcast message.
+
+    private static final byte[] EMPTY = new byte[0]; // Payload of messages without content.
+
+    private final MessageType type; // Kind of message.
+    private final AgentId senderUID; // UID of the agent that sent the message.
+    private final AgentId targetUID; // UID of the agent the message is for.
+    private final byte[] payload; // Content of the message.
+    private final InetSocketAddress source; // Address the message was received from.
+
+    /**
+     * Constructor for Message.
+     *
+     * @param kind Kind of message.
+     * @param sender UID of the agent that sent the message.
+     * @param target UID of the agent the message is for.
+     * @param content Content of the message, or null for no content.
+     * @param from Address the message was received from, or null for an
+     * outgoing message.
+     */
+    public Message(MessageType kind, AgentId sender, AgentId target, byte[] content, InetSocketAddress from) {
+        type = kind;
+        senderUID = sender;
+        targetUID = target;
+        payload = content == null ? EMPTY : content;
+        source = from;
+    }
+
+    /**
+     * Retrieves the kind of this message.
+     *
+     * @return MessageType of this message.
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Retrieves the UID of the agent that sent this message.
+     *
+     * @return AgentId representing the sending agent's UID.
+     */
+    public AgentId getSenderUID() {
+        return senderUID;
+    }
+
+    /**
+     * Retrieves the UID of the agent this message is for.
+     *
+     * @return AgentId representing the target agent's UID.
+     */
+    public AgentId getTargetUID() {
+        return targetUID;
+    }
+
+    /**
+     * Retrieves the content of this message.
+     *
+     * @return Byte array holding the payload.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Retrieves the content of this message as a read-only buffer, without
+     * copying it.
+     *
+     * @return ByteBuffer holding the payload between its position and limit.
+     */
+    public ByteBuffer getPayloadBuffer() {
+        return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    /**
+     * Retrieves the length of the content of this message.
+     *
+     * @return Integer representing the number of payload bytes.
+     */
+    public int getPayloadLength() {
+        return payload.length;
+    }
+
+    /**
+     * Retrieves the content of this message as text.
+     *
+     * @return String representing the UTF-8 decoded payload.
+     */
+    public String getText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Retrieves the address this message was received from.
+     *
+     * @return InetSocketAddress to reply to.
+     */
+    public InetSocketAddress getSource() {
+        return source;
+    }
+
+    /**
+     * Checks whether this message was broadcast to every agent.
+     *
+     * @return Boolean representing whether this is a broadcast message.
+     */
+    public boolean isBroadcast() {
+        return targetUID.isBroadcast();
+    }
+
+    /**
+     * Checks whether this message was sent by the given agent.
+     *
+     * @param id UID of the agent.
+     * @return Boolean representing whether the agent sent this message.
+     */
+    public boolean isFrom(AgentId id) {
+        return senderUID.equals(id);
+    }
+
+    /**
+     * Checks whether this message is for the given agent, not counting
+     * broadcasts.
+     *
+     * @param id UID of the agent.
+     * @return Boolean representing whether this message targets the agent.
+     */
+    public boolean isFor(AgentId id) {
+        return targetUID.equals(id);
+    }
+
+    /**
+     * Checks whether this message was sent by an agent of this AgentSystem.
+     *
+     * @return Boolean representing whether the sender's UID is local.
+     */
+    public boolean isFromLocal() {
+        return senderUID.isLocal();
+    }
+
+    /**
+     * Retrieves the high half of the target's UID, e.g. to look the target up
+     * without an AgentId.
+     *
+     * @return Long representing the most significant bits of the target UID.
+     */
+    public long getTargetMost() {
+        return targetUID.getMostSignificantBits();
+    }
+
+    /**
+     * Retrieves the low half of the target's UID.
+     *
+     * @return Long representing the least significant bits of the target UID.
+     */
+    public long getTargetLeast() {
+        return targetUID.getLeastSignificantBits();
+    }
+
+    /**
+     * Adds a holder of this message, e.g. when it is delivered to one more
+     * agent. Messages that are not pooled ignore this.
+     */
+    void retain() {
+    }
+
+    /**
+     * Tells the AgentSystem that a holder of this message is done with it,
+     * so that a pooled message can be reused once every holder released it.
+     * Messages that are not pooled ignore this.
+     */
+    public void release() {
+    }
+}
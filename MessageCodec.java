@@ -0,0 +1,361 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * MessageCodec class that converts messages to and from their wire format.
+ *
+ * The binary format is a fixed 36 byte header followed by the payload:
+ * magic (1 byte), type (1 byte), sender UID (2 longs), target UID (2 longs)
+ * and payload length (unsigned short). The header accessors read a frame in
+ * place at the buffer's position, so routing a frame allocates nothing.
+ *
+ * Setting the "agentsystem.wire" system property to "text" switches to the
+ * original "message + : + agentUID" strings instead, so that agents can talk
+ * to AgentSystems that predate the binary format.
+ */
+public class MessageCodec {
+
+    public static final String WIRE_PROPERTY = "agentsystem.wire"; // "binary" or "text".
+
+    public static final byte MAGIC = (byte) 0xA7; // First byte of every binary frame.
+    public static final int HEADER_SIZE = 36; // Bytes before the payload.
+    public static final int MAX_FRAME = 65507; // Largest UDP payload.
+    public static final int MAX_PAYLOAD = MAX_FRAME - HEADER_SIZE; // Largest payload of one frame.
+
+    private static final int TYPE_OFFSET = 1;
+    private static final int SENDER_OFFSET = 2;
+    private static final int TARGET_OFFSET = 18;
+    private static final int LENGTH_OFFSET = 34;
+
+    private static final boolean TEXT_MODE = "text".equalsIgnoreCase(System.getProperty(WIRE_PROPERTY, "binary"));
+
+    // Text of the original discovery broadcasts, by the class they look for.
+    private static final Map<String, String> LEGACY_DISCOVERY = Map.of(
+            "PongAgent", "Looking for pongs",
+            "ChatServerAgent", "Looking for chat server");
+
+    static {
+        assert textKeepsSenders() : "a MessageType loses its sender in the text format";
+    }
+
+    /**
+     * Constructor for MessageCodec, which only has static methods.
+     */
+    private MessageCodec() {
+    }
+
+    /**
+     * Checks whether the original text format is used instead of binary frames.
+     *
+     * @return Boolean representing whether text mode is on.
+     */
+    public static boolean isTextMode() {
+        return TEXT_MODE;
+    }
+
+    /**
+     * Writes a binary frame at the buffer's position and advances past it.
+     *
+     * @param out Buffer to write the frame into.
+     * @param type Kind of message.
+     * @param senderMost Most significant bits of the sender's UID.
+     * @param senderLeast Least significant bits of the sender's UID.
+     * @param targetMost Most significant bits of the target's UID.
+     * @param targetLeast Least significant bits of the target's UID.
+     * @param payload Array holding the payload.
+     * @param offset Index of the first payload byte.
+     * @param length Number of payload bytes.
+     */
+    public static void encode(ByteBuffer out, MessageType type, long senderMost, long senderLeast,
+            long targetMost, long targetLeast, byte[] payload, int offset, int length) {
+        encodeHeader(out, type, senderMost, senderLeast, targetMost, targetLeast, length);
+        out.put(payload, offset, length);
+    }
+
+    /**
+     * Writes the header of a binary frame at the buffer's position and
+     * advances to where the payload starts.
+     *
+     * @param out Buffer to write the header into.
+     * @param type Kind of message.
+     * @param senderMost Most significant bits of the sender's UID.
+     * @param senderLeast Least significant bits of the sender's UID.
+     * @param targetMost Most significant bits of the target's UID.
+     * @param targetLeast Least significant bits of the target's UID.
+     * @param length Number of payload bytes that will follow.
+     */
+    public static void encodeHeader(ByteBuffer out, MessageType type, long senderMost, long senderLeast,
+            long targetMost, long targetLeast, int length) {
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload of " + length + " bytes exceeds " + MAX_PAYLOAD);
+        }
+        out.put(MAGIC);
+        out.put(type.code());
+        out.putLong(senderMost);
+        out.putLong(senderLeast);
+        out.putLong(targetMost);
+        out.putLong(targetLeast);
+        out.putShort((short) length);
+    }
+
+    /**
+     * Sets the payload length of a frame whose payload was written after its
+     * header, i.e. whose payload ends at the buffer's position.
+     *
+     * @param frame Buffer holding the frame.
+     * @param start Index at which the frame starts.
+     */
+    public static void finishFrame(ByteBuffer frame, int start) {
+        int length = frame.position() - start - HEADER_SIZE;
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload of " + length + " bytes exceeds " + MAX_PAYLOAD);
+        }
+        frame.putShort(start + LENGTH_OFFSET, (short) length);
+    }
+
+    /**
+     * Writes a string as UTF-8 at the buffer's position without creating an
+     * intermediate byte array.
+     *
+     * @param out Buffer to write into.
+     * @param text The string to write.
+     */
+    public static void putUtf8(ByteBuffer out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            int c = text.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, text.charAt(++i));
+            }
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (c < 0x10000) {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                out.put((byte) (0xF0 | (c >> 18)));
+                out.put((byte) (0x80 | ((c >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Writes a message as a binary frame at the buffer's position.
+     *
+     * @param out Buffer to write the frame into.
+     * @param msg The message to write.
+     */
+    public static void encode(ByteBuffer out, Message msg) {
+        AgentId sender = msg.getSenderUID();
+        AgentId target = msg.getTargetUID();
+        byte[] payload = msg.getPayload();
+        encode(out, msg.getType(), sender.getMostSignificantBits(), sender.getLeastSignificantBits(),
+                target.getMostSignificantBits(), target.getLeastSignificantBits(), payload, 0, payload.length);
+    }
+
+    /**
+     * Checks whether a complete binary frame starts at the buffer's position.
+     *
+     * @param in Buffer holding received data.
+     * @return Boolean representing whether a whole frame can be read.
+     */
+    public static boolean isFrame(ByteBuffer in) {
+        return in.remaining() >= HEADER_SIZE
+                && in.get(in.position()) == MAGIC
+                && in.remaining() >= HEADER_SIZE + payloadLength(in);
+    }
+
+    /**
+     * Reads the type of the frame at the buffer's position.
+     *
+     * @param in Buffer holding a frame.
+     * @return MessageType of the frame, or null if the type is unknown.
+     */
+    public static MessageType type(ByteBuffer in) {
+        return MessageType.fromCode(in.get(in.position() + TYPE_OFFSET));
+    }
+
+    /**
+     * Reads the most significant bits of the sender UID of the frame at the
+     * buffer's position.
+     *
+     * @param in Buffer holding a frame.
+     * @return Long representing the high half of the sender's UID.
+     */
+    public static long senderMost(ByteBuffer in) {
+        return in.getLong(in.position() + SENDER_OFFSET);
+    }
+
+    /**
+     * Reads the least significant bits of the sender UID of the frame at the
+     * buffer's position.
+     *
+     * @param in Buffer holding a frame.
+     * @return Long representing the low half of the sender's UID.
+     */
+    public static long senderLeast(ByteBuffer in) {
+        return in.getLong(in.position() + SENDER_OFFSET + 8);
+    }
+
+    /**
+     * Reads the most significant bits of the target UID of the frame at the
+     * buffer's position.
+     *
+     * @param in Buffer holding a frame.
+     * @return Long representing the high half of the target's UID.
+     */
+    public static long targetMost(ByteBuffer in) {
+        return in.getLong(in.position() + TARGET_OFFSET);
+    }
+
+    /**
+     * Reads the least significant bits of the target UID of the frame at the
+     * buffer's position.
+     *
+     * @param in Buffer holding a frame.
+     * @return Long representing the low half of the target's UID.
+     */
+    public static long targetLeast(ByteBuffer in) {
+        return in.getLong(in.position() + TARGET_OFFSET + 8);
+    }
+
+    /**
+     * Reads the payload length of the frame at the buffer's position.
+     *
+     * @param in Buffer holding a frame.
+     * @return Integer representing the number of payload bytes.
+     */
+    public static int payloadLength(ByteBuffer in) {
+        return in.getShort(in.position() + LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    /**
+     * Reads the frame at the buffer's position into a Message and advances
+     * past it.
+     *
+     * @param in Buffer holding a frame.
+     * @param from Address the frame was received from.
+     * @return Message that was read, or null if the frame has an unknown type.
+     */
+    public static Message decode(ByteBuffer in, InetSocketAddress from) {
+        MessageType type = type(in);
+        AgentId sender = new AgentId(senderMost(in), senderLeast(in));
+        AgentId target = new AgentId(targetMost(in), targetLeast(in));
+        byte[] payload = new byte[payloadLength(in)];
+        in.position(in.position() + HEADER_SIZE);
+        in.get(payload);
+        return type == null ? null : new Message(type, sender, target, payload, from);
+    }
+
+    /**
+     * Converts a message to the original text format.
+     *
+     * @param msg The message to convert.
+     * @return String in the "message + : + agentUID" format.
+     */
+    public static String encodeText(Message msg) {
+        String text = msg.getText();
+        switch (msg.getType()) {
+            case DISCOVER:
+                text = Discovery.getClassName(text); // Older AgentSystems know no nonces.
+                return LEGACY_DISCOVERY.getOrDefault(text, "Looking for " + text);
+            case ANNOUNCE:
+                return "IAM" + Discovery.getClassName(text) + ":" + msg.getSenderUID();
+            case PING:
+                return msg.getSenderUID() + ":ping";
+            case PONG:
+                return "pong:" + msg.getSenderUID();
+            case END_CHAT:
+                return "end chat:" + msg.getSenderUID();
+            default:
+                return text + ":" + msg.getSenderUID();
+        }
+    }
+
+    /**
+     * Parses a message in the original text format. Text messages carry no
+     * target, so they are treated as broadcasts.
+     *
+     * @param wire String received from the network.
+     * @param from Address the string was received from.
+     * @return Message that was parsed.
+     */
+    public static Message decodeText(String wire, InetSocketAddress from) {
+        for (Map.Entry<String, String> legacy : LEGACY_DISCOVERY.entrySet()) {
+            if (legacy.getValue().equals(wire)) {
+                return textMessage(MessageType.DISCOVER, null, legacy.getKey(), from);
+            }
+        }
+        if (wire.startsWith("Looking for ")) {
+            return textMessage(MessageType.DISCOVER, null, wire.substring(12), from);
+        }
+
+        // Everything else is "message + : + agentUID", except "agentUID:ping".
+        int colon = wire.lastIndexOf(':');
+        String head = colon < 0 ? wire : wire.substring(0, colon);
+        String tail = colon < 0 ? null : wire.substring(colon + 1);
+        if ("ping".equals(tail)) {
+            return textMessage(MessageType.PING, head, null, from);
+        } else if (head.equals("pong")) {
+            return textMessage(MessageType.PONG, tail, null, from);
+        } else if (head.startsWith("IAM")) {
+            return textMessage(MessageType.ANNOUNCE, tail, head.substring(3), from);
+        } else if (head.equalsIgnoreCase("end chat")) {
+            return textMessage(MessageType.END_CHAT, tail, null, from);
+        }
+        return textMessage(MessageType.CHAT, tail, head, from);
+    }
+
+    /**
+     * Checks that every MessageType that carries a sender in the text format
+     * comes back from decodeText with the sender encodeText was given. Only
+     * DISCOVER broadcasts carry no sender. Run when the class is loaded with
+     * assertions enabled ("java -ea").
+     *
+     * @return Boolean representing whether every sender round-trips.
+     */
+    private static boolean textKeepsSenders() {
+        AgentId sender = new AgentId(0x0123456789abcdefL, 42);
+        byte[] payload = "PongAgent".getBytes(StandardCharsets.UTF_8);
+        for (MessageType type : MessageType.values()) {
+            if (type == MessageType.DISCOVER) {
+                continue;
+            }
+            Message msg = new Message(type, sender, Message.BROADCAST, payload, null);
+            if (!sender.equals(decodeText(encodeText(msg), null).getSenderUID())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a broadcast Message from the parts of a text message.
+     *
+     * @param type Kind of message.
+     * @param sender Sender's UID as text, or null if it is unknown.
+     * @param text Payload text, or null for no payload.
+     * @param from Address the message was received from.
+     * @return Message holding the given parts.
+     */
+    private static Message textMessage(MessageType type, String sender, String text, InetSocketAddress from) {
+        AgentId senderUID = Message.BROADCAST; // Unknown sender.
+        if (sender != null) {
+            try {
+                senderUID = AgentId.parse(sender);
+            } catch (IllegalArgumentException ex) {
+                // Not a UID: leave the sender unknown.
+            }
+        }
+        byte[] payload = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+        return new Message(type, senderUID, Message.BROADCAST, payload, from);
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * MessageType enum listing the kinds of messages agents exchange. The ordinal
+ * of each type is its code on the wire, so new types must only be appended.
+ */
+public enum MessageType {
+
+    DISCOVER, // Broadcast looking for agents of the class named in the payload.
+    ANNOUNCE, // Reply naming the sending agent's class in the payload.
+    PING, // Ping from a PingAgent.
+    PONG, // Pong from a PongAgent.
+    CHAT, // Chat text in the payload.
+    END_CHAT, // Ends a chat.
+    BUSY, // Reply to a message the target's full mailbox rejected; the payload holds its type code.
+    RELIABLE, // Envelope around a frame sent with reliable delivery.
+    ACK, // Acknowledgement of RELIABLE envelopes.
+    FRAGMENT, // Part of a message too large for one datagram; see Reassembler.
+    SUBSCRIBE, // Tells other AgentSystems this one has subscribers to the topic in the payload.
+    UNSUBSCRIBE, // Tells other AgentSystems this one no longer has subscribers to the topic in the payload.
+    PUBLISH; // Data published on a topic; see Topics for the payload.
+
+    private static final MessageType[] TYPES = values(); // Types indexed by code.
+
+    /**
+     * Retrieves the wire code of this type.
+     *
+     * @return Byte representing this type on the wire.
+     */
+    public byte code() {
+        return (byte) ordinal();
+    }
+
+    /**
+     * Retrieves the type with the given wire code.
+     *
+     * @param code Code read from the wire.
+     * @return MessageType with that code, or null if the code is unknown.
+     */
+    public static MessageType fromCode(int code) {
+        return code >= 0 && code < TYPES.length ? TYPES[code] : null;
+    }
+}
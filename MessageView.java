@@ -0,0 +1,265 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MessageView class that is a Message backed by a pooled buffer holding its
+ * frame. The reactor thread copies each received frame into a free view and
+ * routes the view itself, so receiving a message allocates nothing once the
+ * pool is warm. The header is read in place by the typed accessors; the
+ * payload is only copied into an array if getPayload or getText is called.
+ *
+ * Every agent a view is delivered to holds a reference, and the view returns
+ * to the pool when the last holder calls release(). At most
+ * "agentsystem.receivePool" views are ever created; once they are all held,
+ * frames are decoded into ordinary Messages instead, so agents that never
+ * release what they receive keep working as before.
+ */
+public final class MessageView extends Message {
+
+    public static final String POOL_PROPERTY = "agentsystem.receivePool"; // Views created at most.
+
+    private static final int CAPACITY = 2048; // Largest frame a view holds; larger frames are decoded.
+    private static final int POOL_SIZE = Integer.getInteger(POOL_PROPERTY, 1024);
+    private static final Mailbox free = new Mailbox(POOL_SIZE, Mailbox.OverflowPolicy.DROP_NEWEST); // Views to reuse.
+    private static final AtomicInteger created = new AtomicInteger(); // Views created so far.
+
+    private final ByteBuffer frame = ByteBuffer.allocateDirect(CAPACITY); // Copy of the received frame.
+    private final ByteBuffer payload = frame.asReadOnlyBuffer(); // Read-only window onto the payload.
+    private final AtomicInteger refs = new AtomicInteger(); // Holders that have not released the view.
+    private MessageType type; // Kind of message.
+    private long senderMost; // High half of the sender's UID.
+    private long senderLeast; // Low half of the sender's UID.
+    private long targetMost; // High half of the target's UID.
+    private long targetLeast; // Low half of the target's UID.
+    private int length; // Number of payload bytes.
+    private InetSocketAddress source; // Address the message was received from.
+    private AgentId sender; // Sender UID, created on first use and kept while later frames have the same one.
+    private AgentId target; // Target UID, created on first use and kept while later frames have the same one.
+
+    /**
+     * Constructor for MessageView, called only by read.
+     */
+    private MessageView() {
+        super(null, null, null, null, null);
+    }
+
+    /**
+     * Reads the frame at the buffer's position into a pooled view, or into an
+     * ordinary Message if the frame is too large or no view is free, and
+     * advances past it. The caller holds one reference and must release it.
+     *
+     * @param in Buffer holding a frame.
+     * @param from Address the frame was received from.
+     * @return Message that was read, or null if the frame has an unknown type.
+     */
+    public static Message read(ByteBuffer in, InetSocketAddress from) {
+        int size = MessageCodec.HEADER_SIZE + MessageCodec.payloadLength(in);
+        MessageView view = null;
+        if (size <= CAPACITY) {
+            view = (MessageView) free.poll();
+            if (view == null && created.get() < POOL_SIZE) {
+                created.incrementAndGet();
+                view = new MessageView();
+            }
+        }
+        if (view == null) {
+            return MessageCodec.decode(in, from);
+        }
+        MessageType kind = MessageCodec.type(in);
+        if (kind == null) {
+            in.position(in.position() + size);
+            free.offer(view);
+            return null;
+        }
+        view.type = kind;
+        view.senderMost = MessageCodec.senderMost(in);
+        view.senderLeast = MessageCodec.senderLeast(in);
+        view.targetMost = MessageCodec.targetMost(in);
+        view.targetLeast = MessageCodec.targetLeast(in);
+        view.length = size - MessageCodec.HEADER_SIZE;
+        view.source = from;
+        view.frame.put(0, in, in.position(), size);
+        view.refs.set(1);
+        in.position(in.position() + size);
+        return view;
+    }
+
+    /**
+     * Retrieves the kind of this message.
+     *
+     * @return MessageType of this message.
+     */
+    @Override
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Retrieves the UID of the agent that sent this message.
+     *
+     * @return AgentId representing the sending agent's UID.
+     */
+    @Override
+    public AgentId getSenderUID() {
+        if (sender == null || !sender.matches(senderMost, senderLeast)) {
+            sender = new AgentId(senderMost, senderLeast);
+        }
+        return sender;
+    }
+
+    /**
+     * Retrieves the UID of the agent this message is for.
+     *
+     * @return AgentId representing the target agent's UID.
+     */
+    @Override
+    public AgentId getTargetUID() {
+        if (target == null || !target.matches(targetMost, targetLeast)) {
+            target = new AgentId(targetMost, targetLeast);
+        }
+        return target;
+    }
+
+    /**
+     * Retrieves a copy of the content of this message.
+     *
+     * @return Byte array holding the payload.
+     */
+    @Override
+    public byte[] getPayload() {
+        byte[] copy = new byte[length];
+        frame.get(MessageCodec.HEADER_SIZE, copy);
+        return copy;
+    }
+
+    /**
+     * Retrieves the content of this message as a read-only window onto the
+     * pooled buffer. The same buffer is returned on every call with its
+     * position and limit reset, so agents sharing a broadcast message should
+     * read it with absolute gets.
+     *
+     * @return ByteBuffer holding the payload between its position and limit.
+     */
+    @Override
+    public ByteBuffer getPayloadBuffer() {
+        payload.limit(MessageCodec.HEADER_SIZE + length).position(MessageCodec.HEADER_SIZE);
+        return payload;
+    }
+
+    /**
+     * Retrieves the length of the content of this message.
+     *
+     * @return Integer representing the number of payload bytes.
+     */
+    @Override
+    public int getPayloadLength() {
+        return length;
+    }
+
+    /**
+     * Retrieves the content of this message as text.
+     *
+     * @return String representing the UTF-8 decoded payload.
+     */
+    @Override
+    public String getText() {
+        return new String(getPayload(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Retrieves the address this message was received from.
+     *
+     * @return InetSocketAddress to reply to.
+     */
+    @Override
+    public InetSocketAddress getSource() {
+        return source;
+    }
+
+    /**
+     * Checks whether this message was broadcast to every agent.
+     *
+     * @return Boolean representing whether this is a broadcast message.
+     */
+    @Override
+    public boolean isBroadcast() {
+        return targetMost == 0 && targetLeast == 0;
+    }
+
+    /**
+     * Checks whether this message was sent by the given agent, without
+     * creating an AgentId for the sender.
+     *
+     * @param id UID of the agent.
+     * @return Boolean representing whether the agent sent this message.
+     */
+    @Override
+    public boolean isFrom(AgentId id) {
+        return id.matches(senderMost, senderLeast);
+    }
+
+    /**
+     * Checks whether this message is for the given agent, without creating
+     * an AgentId for the target.
+     *
+     * @param id UID of the agent.
+     * @return Boolean representing whether this message targets the agent.
+     */
+    @Override
+    public boolean isFor(AgentId id) {
+        return id.matches(targetMost, targetLeast);
+    }
+
+    /**
+     * Checks whether this message was sent by an agent of this AgentSystem,
+     * without creating an AgentId for the sender.
+     *
+     * @return Boolean representing whether the sender's UID is local.
+     */
+    @Override
+    public boolean isFromLocal() {
+        return AgentId.isLocal(senderMost);
+    }
+
+    /**
+     * Retrieves the high half of the target's UID.
+     *
+     * @return Long representing the most significant bits of the target UID.
+     */
+    @Override
+    public long getTargetMost() {
+        return targetMost;
+    }
+
+    /**
+     * Retrieves the low half of the target's UID.
+     *
+     * @return Long representing the least significant bits of the target UID.
+     */
+    @Override
+    public long getTargetLeast() {
+        return targetLeast;
+    }
+
+    /**
+     * Adds a holder of this view.
+     */
+    @Override
+    void retain() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Drops a holder of this view, returning it to the pool once none is
+     * left.
+     */
+    @Override
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            source = null;
+            free.offer(this);
+        }
+    }
+}
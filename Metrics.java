@@ -0,0 +1,318 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics class that gathers what the AgentSystem measures: datagrams and
+ * bytes on the socket, in-process deliveries, mailbox drops and depth,
+ * retransmissions, and round-trip and discovery latency histograms. The hot
+ * paths only bump striped LongAdders or record into a LatencyRecorder, both
+ * lock-free and allocation-free; everything else is read from the components
+ * that already count it, and only when asked for.
+ *
+ * The metrics are exposed as MXBeans, one for the system and one per local
+ * agent, unless "agentsystem.jmx" is false, and are logged as a text snapshot
+ * every "agentsystem.metrics.intervalMs" if that is set.
+ */
+public class Metrics implements AgentSystemMXBean {
+
+    public static final String JMX_PROPERTY = "agentsystem.jmx"; // Whether to register MXBeans.
+    public static final String INTERVAL_PROPERTY = "agentsystem.metrics.intervalMs"; // Snapshot period, 0 = off.
+
+    private static final String DOMAIN = "agentsystem"; // JMX domain of every MXBean.
+
+    private final AgentRegistry agents; // Local agents.
+    private final Reassembler reassembler; // Puts fragmented messages back together.
+    private final boolean jmx; // Whether MXBeans are registered.
+    private volatile Dispatcher dispatcher; // Socket counters, or null before it is started.
+    private volatile ReliableChannel reliable; // Retransmits and round-trip times, or null.
+    private final LongAdder localDeliveries = new LongAdder(); // Messages handed over in-process.
+    private final LatencyRecorder discovery = new LatencyRecorder(); // Time to find an agent over the network.
+    private ScheduledExecutorService reporter; // Logs the periodic snapshot, or null.
+
+    /**
+     * Constructor for Metrics.
+     *
+     * @param localAgents Registry of the local agents.
+     * @param fragments Reassembler of fragmented messages.
+     * @param registerMXBeans Whether to expose the metrics through JMX.
+     */
+    public Metrics(AgentRegistry localAgents, Reassembler fragments, boolean registerMXBeans) {
+        agents = localAgents;
+        reassembler = fragments;
+        jmx = registerMXBeans;
+    }
+
+    /**
+     * Starts exposing the metrics: registers the system MXBean and, if the
+     * interval is positive, logs a snapshot at that interval.
+     *
+     * @param socket Dispatcher whose socket counters to report.
+     * @param channel Reliable channel whose retransmits and round-trip times
+     * to report, or null.
+     * @param intervalMs Milliseconds between snapshots, or 0 for none.
+     */
+    public synchronized void start(Dispatcher socket, ReliableChannel channel, long intervalMs) {
+        dispatcher = socket;
+        reliable = channel;
+        register(this, new String[]{"type", "AgentSystem"});
+        if (intervalMs > 0 && reporter == null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "agent-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            reporter.scheduleAtFixedRate(() -> {
+                if (AgentLog.isEnabled(Level.INFO)) {
+                    AgentLog.info(getSnapshot().trim());
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic snapshot.
+     */
+    public synchronized void close() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Registers the MXBean of a local agent.
+     *
+     * @param agent The agent.
+     */
+    public void register(Agent agent) {
+        register(agent.getMetrics(), agentName(agent));
+    }
+
+    /**
+     * Unregisters the MXBean of a local agent.
+     *
+     * @param agent The agent.
+     */
+    public void unregister(Agent agent) {
+        if (!jmx) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(agentName(agent));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException ex) {
+            Logger.getLogger(Metrics.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Counts a message handed to a local agent in-process.
+     */
+    public void localDelivery() {
+        localDeliveries.increment();
+    }
+
+    /**
+     * Records how long finding an agent over the network took.
+     *
+     * @param nanos Time from the first discovery broadcast to the answer.
+     */
+    public void discovered(long nanos) {
+        discovery.record(nanos);
+    }
+
+    @Override
+    public int getAgentCount() {
+        return agents.size();
+    }
+
+    @Override
+    public long getDatagramsSent() {
+        Dispatcher socket = dispatcher;
+        return socket == null ? 0 : socket.getDatagramsSent();
+    }
+
+    @Override
+    public long getBytesSent() {
+        Dispatcher socket = dispatcher;
+        return socket == null ? 0 : socket.getBytesSent();
+    }
+
+    @Override
+    public long getDatagramsReceived() {
+        Dispatcher socket = dispatcher;
+        return socket == null ? 0 : socket.getDatagramsReceived();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        Dispatcher socket = dispatcher;
+        return socket == null ? 0 : socket.getBytesReceived();
+    }
+
+    @Override
+    public long getDatagramDrops() {
+        Dispatcher socket = dispatcher;
+        return socket == null ? 0 : socket.getDatagramDrops();
+    }
+
+    @Override
+    public long getLocalDeliveries() {
+        return localDeliveries.sum();
+    }
+
+    @Override
+    public long getMailboxDrops() {
+        long drops = 0;
+        for (Agent ag : agents.getAll()) {
+            drops += ag.getMailbox().getDropCount() + ag.getMailbox().getRejectCount();
+        }
+        return drops;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        long depth = 0;
+        for (Agent ag : agents.getAll()) {
+            depth += ag.getMailbox().getDepth();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getRetransmits() {
+        ReliableChannel channel = reliable;
+        return channel == null ? 0 : channel.getRetransmitCount();
+    }
+
+    @Override
+    public long getFragmentDrops() {
+        return reassembler.getDropCount();
+    }
+
+    @Override
+    public long getLogDrops() {
+        return AgentLog.getDropCount();
+    }
+
+    @Override
+    public long getRttCount() {
+        ReliableChannel channel = reliable;
+        return channel == null ? 0 : channel.getRttRecorder().getCount();
+    }
+
+    @Override
+    public double getRttP50Micros() {
+        ReliableChannel channel = reliable;
+        return channel == null ? 0 : channel.getRttRecorder().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getRttP99Micros() {
+        ReliableChannel channel = reliable;
+        return channel == null ? 0 : channel.getRttRecorder().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getDiscoveryCount() {
+        return discovery.getCount();
+    }
+
+    @Override
+    public double getDiscoveryP50Micros() {
+        return discovery.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getDiscoveryP99Micros() {
+        return discovery.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public void resetLatencies() {
+        discovery.reset();
+        ReliableChannel channel = reliable;
+        if (channel != null) {
+            channel.getRttRecorder().reset();
+        }
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("AgentSystem agents=%d sent=%d/%dB received=%d/%dB local=%d depth=%d dropped=%d"
+                + " retransmits=%d fragmentDrops=%d datagramDrops=%d logDrops=%d%n", getAgentCount(), getDatagramsSent(),
+                getBytesSent(), getDatagramsReceived(), getBytesReceived(), getLocalDeliveries(), getQueueDepth(),
+                getMailboxDrops(), getRetransmits(), getFragmentDrops(), getDatagramDrops(), getLogDrops()));
+        ReliableChannel channel = reliable;
+        if (channel != null) {
+            text.append("  rtt ").append(channel.getRttRecorder().summarizeMicros()).append(System.lineSeparator());
+        }
+        text.append("  discovery ").append(discovery.summarizeMicros()).append(System.lineSeparator());
+        for (Agent ag : agents.getAll()) {
+            text.append("  ").append(ag.getMetrics()).append(System.lineSeparator());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Builds the name properties of an agent's MXBean.
+     *
+     * @param agent The agent.
+     * @return String array of alternating keys and values.
+     */
+    private static String[] agentName(Agent agent) {
+        return new String[]{"type", "Agent", "class", agent.getClassName(), "id", agent.getUID()};
+    }
+
+    /**
+     * Builds an ObjectName in the agentsystem domain.
+     *
+     * @param properties Alternating keys and values, in order.
+     * @return ObjectName with those properties.
+     * @throws JMException if a value cannot be used in a name.
+     */
+    private static ObjectName objectName(String[] properties) throws JMException {
+        StringBuilder name = new StringBuilder(DOMAIN).append(':');
+        for (int i = 0; i < properties.length; i += 2) {
+            if (i > 0) {
+                name.append(',');
+            }
+            name.append(properties[i]).append('=').append(properties[i + 1]);
+        }
+        return new ObjectName(name.toString());
+    }
+
+    /**
+     * Registers an MXBean, replacing any registered under the same name.
+     *
+     * @param bean The MXBean.
+     * @param properties Name properties of the MXBean.
+     */
+    private void register(Object bean, String[] properties) {
+        if (!jmx) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(properties);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(bean, name);
+        } catch (JMException ex) {
+            Logger.getLogger(Metrics.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -1,118 +1,197 @@
-
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-/**
- * PingAgent class that supports looking for PongAgents and sending them pings.
- * ChatClientAgent. Note that messages have the following format: "message + : +
- * agentUID".
- */
-public class PingAgent extends Agent {
-
-    private InetAddress addressOfPong; // Pong's IP address.
-
-    /**
-     * Constructor for PingAgent.
-     */
-    public PingAgent() {
-        super("PingAgent");
-        try {
-            addressOfPong = InetAddress.getLocalHost();
-        } catch (UnknownHostException ex) {
-            Logger.getLogger(PingAgent.class.getName()).log(Level.SEVERE, null, ex);
-        }
-    }
-
-    /**
-     * Starts up this agent by looking for PongAgents, sending them pings, and
-     * receiving back pongs.
-     *
-     * @return boolean representing completion of the method.
-     */
-    @Override
-    public boolean start() {
-        String pongID = lookForPongs();
-        SocketPacketPackage socketPack = sendPing(pongID);
-        receiveMsg(socketPack, pongID); // Once ping receives a pong -> no further messaging.
-        return true;
-    }
-
-    /**
-     * Queries the AgentSystem for available PongAgents.
-     *
-     * @return String representing the UID of the found agent.
-     */
-    private String lookForPongs() {
-        System.out.println("PingAgent[id=" + getUID() + "]: Looking for PongAgents...");
-        String foundID = "";
-        String outMessage = "Looking for pongs";
-        DatagramPacket pack;
-
-        // While a PongAgent has not been found, query the AgentSystem.
-        while (foundID.equals("")) {
-            pack = AgentSystem.findAgent(outMessage);
-            String str = new String(pack.getData(), 0, pack.getLength());
-            String[] split = str.split(":");
-            if (!split[0].equals("pong")) {
-                foundID = split[1];
-                addressOfPong = pack.getAddress();
-            }
-        }
-
-        // Connection established.
-        System.out.println("PingAgent[id=" + getUID() + "]: Found PongAgent[id=" + foundID + "]");
-        return foundID;
-    }
-
-    /**
-     * Sends a message to the server agent.
-     *
-     * @param pongID String representing the UID of the server agent.
-     * @return SocketPacketPackage representing the datagram socket and datagram
-     * packet used to send the message.
-     */
-    private SocketPacketPackage sendPing(String pongID) {
-        try {
-            DatagramSocket s = new DatagramSocket();
-            String outMessage = getUID() + ":ping";
-            byte[] buf = outMessage.getBytes();
-            int port = AgentSystem.getPort();
-            DatagramPacket out = new DatagramPacket(buf, buf.length, addressOfPong, port);
-
-            System.out.println("PingAgent[id=" + getUID() + "]: Sending ping to PongAgent[id=" + pongID + "]");
-
-            // Have the agent system send the message.
-            AgentSystem.sendMsg(s, outMessage, addressOfPong, port);
-            return new SocketPacketPackage(s, out);
-        } catch (SocketException ex) {
-            Logger.getLogger(PingAgent.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return null; // Error occurred.
-    }
-
-    /**
-     * Receives a message from the server.
-     *
-     * @param pack SocketPacketPackage representing the socket/packet pair that
-     * is used to receive the message.
-     * @param pongID String representing the UID of the server agent.
-     * @return String representing the message received.
-     */
-    private void receiveMsg(SocketPacketPackage pack, String pongID) {
-        try {
-            pack.socket.receive(pack.packet); // Receive the datagram packet.
-
-            // Process the received message.
-            String str = new String(pack.packet.getData(), 0, pack.packet.getLength());
-            System.out.println("PingAgent[id=" + getUID() + "]: Received pong from PongAgent[id=" + pongID + "]" + str);
-        } catch (IOException ex) {
-            Logger.getLogger(PingAgent.class.getName()).log(Level.SEVERE, null, ex);
-        }
-    }
-}
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * PingAgent class that supports looking for PongAgents and sending them pings.
+ *
+ * If "agentsystem.bench.count" or "agentsystem.bench.durationMs" is set, the
+ * agent first benchmarks the PongAgent: it keeps up to
+ * "agentsystem.bench.window" pings of "agentsystem.bench.size" bytes in flight
+ * until the count or duration is reached, then reports the message rate and
+ * round-trip latency percentiles. The pings carry their send time and
+ * sequence number in the payload, so the benchmark needs the binary wire
+ * format and is refused in text mode.
+ */
+public class PingAgent extends Agent {
+
+    public static final String BENCH_COUNT_PROPERTY = "agentsystem.bench.count"; // Pings to send.
+    public static final String BENCH_DURATION_PROPERTY = "agentsystem.bench.durationMs"; // How long to send.
+    public static final String BENCH_SIZE_PROPERTY = "agentsystem.bench.size"; // Payload bytes per ping.
+    public static final String BENCH_WINDOW_PROPERTY = "agentsystem.bench.window"; // Pings in flight.
+
+    private static final long LOSS_TIMEOUT_MS = 1000; // Silence after which pings in flight count as lost.
+
+    private InetSocketAddress addressOfPong; // Pong's IP address and port.
+
+    /**
+     * Constructor for PingAgent.
+     */
+    public PingAgent() {
+        super("PingAgent");
+    }
+
+    /**
+     * Starts up this agent by looking for PongAgents, sending them pings, and
+     * receiving back pongs.
+     *
+     * @return boolean representing completion of the method.
+     */
+    @Override
+    public boolean start() {
+        AgentId pongID = lookForPongs();
+        if (pongID == null) {
+            return false; // Interrupted while looking.
+        }
+        long count = Long.getLong(BENCH_COUNT_PROPERTY, 0);
+        long durationMs = Long.getLong(BENCH_DURATION_PROPERTY, 0);
+        if ((count > 0 || durationMs > 0) && MessageCodec.isTextMode()) {
+            AgentLog.log(Level.SEVERE, "PingAgent[id={}]: Not benchmarking: pings sent with {}=text carry no payload",
+                    getUID(), MessageCodec.WIRE_PROPERTY);
+        } else if ((count > 0 || durationMs > 0) && !benchmark(pongID, count, durationMs)) {
+            return false; // Interrupted while benchmarking.
+        }
+        sendPing(pongID);
+        receiveMsg(pongID); // Once ping receives a pong -> no further messaging.
+        return true;
+    }
+
+    /**
+     * Queries the AgentSystem for available PongAgents.
+     *
+     * @return AgentId representing the UID of the found agent.
+     */
+    private AgentId lookForPongs() {
+        AgentLog.info("PingAgent[id={}]: Looking for PongAgents...", getUID());
+
+        // Query the AgentSystem until a PongAgent answers.
+        AgentDirectory.Entry found = AgentSystem.findAgent(this, "PongAgent");
+        if (found == null) {
+            return null; // Interrupted.
+        }
+        AgentId foundID = found.getUID();
+        addressOfPong = found.getAddress();
+
+        // Connection established.
+        AgentLog.info("PingAgent[id={}]: Found PongAgent[id={}]", getUID(), foundID);
+        return foundID;
+    }
+
+    /**
+     * Sends a ping to the server agent.
+     *
+     * @param pongID AgentId representing the UID of the server agent.
+     */
+    private void sendPing(AgentId pongID) {
+        AgentLog.info("PingAgent[id={}]: Sending ping to PongAgent[id={}]", getUID(), pongID);
+
+        // Have the agent system send the message.
+        AgentSystem.sendMsg(this, MessageType.PING, pongID, (byte[]) null, addressOfPong);
+    }
+
+    /**
+     * Sends timed pings to the server, keeping a window of pings in flight,
+     * and reports the message rate and round-trip latencies.
+     *
+     * @param pongID AgentId representing the UID of the server agent.
+     * @param count Number of pings to send, or 0 to send until the duration
+     * has passed.
+     * @param durationMs How long to send pings for, or 0 to send until count
+     * pings were sent.
+     * @return Boolean representing whether the benchmark completed.
+     */
+    private boolean benchmark(AgentId pongID, long count, long durationMs) {
+        int size = Math.max(16, Integer.getInteger(BENCH_SIZE_PROPERTY, 64));
+        int window = Math.max(1, Integer.getInteger(BENCH_WINDOW_PROPERTY, 1));
+        byte[] payload = new byte[size]; // First 8 bytes carry the send time, the next 8 the sequence number.
+        LatencyRecorder rtt = new LatencyRecorder();
+        AgentLog.info("PingAgent[id={}]: Benchmarking PongAgent[id={}] with {} byte pings, {} in flight...",
+                getUID(), pongID, size, window);
+
+        long start = System.nanoTime();
+        long end = durationMs > 0 ? start + TimeUnit.MILLISECONDS.toNanos(durationMs) : Long.MAX_VALUE;
+        long sent = 0;
+        long lost = 0;
+        long busy = 0;
+        long written = 0; // Pings with a lower sequence number were given up on; late pongs for them are ignored.
+        int inFlight = 0;
+        while (true) {
+            // Fill the window.
+            while (inFlight < window && (count == 0 || sent < count) && System.nanoTime() < end) {
+                writeLong(payload, 0, System.nanoTime());
+                writeLong(payload, 8, sent);
+                AgentSystem.sendMsg(this, MessageType.PING, pongID, payload, addressOfPong);
+                sent++;
+                inFlight++;
+            }
+            if (inFlight == 0) {
+                break; // Everything sent has been answered.
+            }
+
+            Message msg = receive(LOSS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (msg == null) {
+                if (Thread.currentThread().isInterrupted() || isStopping()) {
+                    return false;
+                }
+                lost += inFlight; // No answer for a while: give up on the pings in flight.
+                inFlight = 0;
+                written = sent;
+            } else {
+                if (msg.getType() == MessageType.PONG && msg.getPayloadLength() >= 16) {
+                    ByteBuffer echo = msg.getPayloadBuffer();
+                    if (echo.getLong(echo.position() + 8) >= written) {
+                        rtt.record(System.nanoTime() - echo.getLong(echo.position()));
+                        inFlight--;
+                    }
+                } else if (msg.getType() == MessageType.BUSY && inFlight > 0) {
+                    // Pong's mailbox rejected a ping: free its slot in the window. A BUSY does not
+                    // say which ping it was, so one arriving after the pings were given up on is ignored.
+                    busy++;
+                    inFlight--;
+                }
+                msg.release();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (AgentLog.isEnabled(Level.INFO)) {
+            AgentLog.info(String.format("PingAgent[id=%s]: Sent %d pings, lost %d, busy %d, in %.2f s: %.0f msg/s, RTT %s",
+                    getUID(), sent, lost, busy, seconds, rtt.getCount() / seconds, rtt.summarizeMicros()));
+        }
+        return true;
+    }
+
+    /**
+     * Writes a long into 8 bytes of an array, big-endian.
+     *
+     * @param buf Array to write into.
+     * @param offset Index of the first byte to write.
+     * @param value The value to write.
+     */
+    private static void writeLong(byte[] buf, int offset, long value) {
+        for (int i = offset + 7; i >= offset; i--) {
+            buf[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Receives a pong from the server.
+     *
+     * @param pongID AgentId representing the UID of the server agent.
+     */
+    private void receiveMsg(AgentId pongID) {
+        Message msg = receive(); // Receive the next message routed to this agent.
+        while (msg != null && (msg.getType() != MessageType.PONG || msg.getPayloadLength() > 0)) {
+            msg.release(); // Not the pong, e.g. a late benchmark pong.
+            msg = receive();
+        }
+
+        // Process the received message.
+        if (msg != null) {
+            AgentLog.info("PingAgent[id={}]: Received pong from PongAgent[id={}]", getUID(), pongID);
+            msg.release();
+        }
+    }
+}
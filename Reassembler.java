@@ -0,0 +1,273 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reassembler class that puts messages split into FRAGMENT frames back
+ * together. Every fragment carries the message's ID, the fragment's index and
+ * byte offset, the number of fragments, the total length and the original
+ * message type, so fragments may arrive in any order and more than once.
+ *
+ * The bytes held for incomplete messages are bounded: when a new message
+ * would exceed the bound, the oldest incomplete messages are dropped, and
+ * messages whose fragments stop arriving are dropped after a timeout.
+ */
+public class Reassembler {
+
+    public static final String TIMEOUT_PROPERTY = "agentsystem.fragment.timeoutMs"; // Time to collect all fragments.
+    public static final String MAX_BYTES_PROPERTY = "agentsystem.fragment.maxBytes"; // Bytes held for incomplete messages.
+    public static final String MTU_PROPERTY = "agentsystem.fragment.mtu"; // Largest datagram a fragment fills.
+
+    public static final int HEADER_SIZE = 21; // ID, index, count, offset, total length and type before the bytes.
+
+    private final long timeoutNanos; // Time after which an incomplete message is dropped.
+    private final long maxBytes; // Bytes held for incomplete messages at most.
+    private final Map<Key, Partial> partials = new LinkedHashMap<>(); // Incomplete messages, oldest first.
+    private long buffered; // Bytes held for incomplete messages.
+    private Key lastKey; // Key of the message the last fragment belonged to.
+    private Partial last; // Message the last fragment belonged to, as fragments mostly arrive in runs.
+    private final LongAdder dropped = new LongAdder(); // Messages dropped incomplete or invalid.
+
+    /**
+     * Constructor for Reassembler.
+     *
+     * @param timeoutMs Time in milliseconds to collect all fragments of a
+     * message.
+     * @param bufferBytes Bytes held for incomplete messages at most; larger
+     * messages are dropped.
+     */
+    public Reassembler(long timeoutMs, long bufferBytes) {
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        maxBytes = bufferBytes;
+    }
+
+    /**
+     * Writes the fragment header at the buffer's position, after the frame
+     * header of a FRAGMENT frame.
+     *
+     * @param out Buffer to write into.
+     * @param id ID of the fragmented message, unique per sender.
+     * @param index Index of this fragment.
+     * @param count Number of fragments.
+     * @param offset Offset of this fragment's bytes in the message payload.
+     * @param total Length of the whole message payload.
+     * @param type Type of the fragmented message.
+     */
+    public static void putHeader(ByteBuffer out, int id, int index, int count, int offset, int total, MessageType type) {
+        out.putInt(id);
+        out.putInt(index);
+        out.putInt(count);
+        out.putInt(offset);
+        out.putInt(total);
+        out.put(type.code());
+    }
+
+    /**
+     * Adds a received fragment.
+     *
+     * @param fragment FRAGMENT message received from the network.
+     * @param now Current System.nanoTime().
+     * @return Message put back together, or null if fragments are still
+     * missing or the fragment was dropped.
+     */
+    public synchronized Message add(Message fragment, long now) {
+        expire(now);
+        ByteBuffer in = fragment.getPayloadBuffer(); // Read in place: fragments are often pooled views.
+        int start = in.position();
+        if (in.remaining() < HEADER_SIZE) {
+            dropped.increment();
+            return null;
+        }
+        int id = in.getInt(start);
+        int index = in.getInt(start + 4);
+        int count = in.getInt(start + 8);
+        int offset = in.getInt(start + 12);
+        int total = in.getInt(start + 16);
+        MessageType type = MessageType.fromCode(in.get(start + 20));
+        int length = in.remaining() - HEADER_SIZE;
+        if (type == null || index < 0 || index >= count || count > total + 1 || offset < 0 || total > maxBytes
+                || (long) offset + length > total) {
+            dropped.increment();
+            return null;
+        }
+
+        Partial part;
+        Key key;
+        if (last != null && lastKey.matches(fragment, id)) {
+            part = last;
+            key = lastKey;
+        } else {
+            key = new Key(fragment.getSource(), fragment.getSenderUID(), id);
+            part = partials.get(key);
+            if (part == null) {
+                while (buffered + total > maxBytes && !partials.isEmpty()) {
+                    drop(partials.keySet().iterator().next()); // Make room by dropping the oldest.
+                }
+                part = new Partial(total, count, now + timeoutNanos);
+                partials.put(key, part);
+                buffered += total;
+            }
+            lastKey = key;
+            last = part;
+        }
+        if (part.count != count || part.data.length != total) {
+            return null; // Disagrees with the earlier fragments.
+        }
+        if (!part.received.get(index)) {
+            in.get(start + HEADER_SIZE, part.data, offset, length);
+            part.received.set(index);
+            part.missing--;
+        }
+        if (part.missing > 0) {
+            return null;
+        }
+        partials.remove(key);
+        buffered -= total;
+        last = null;
+        lastKey = null;
+        return new Message(type, fragment.getSenderUID(), fragment.getTargetUID(), part.data, fragment.getSource());
+    }
+
+    /**
+     * Retrieves the number of bytes held for incomplete messages.
+     *
+     * @return Long representing the buffered bytes.
+     */
+    public synchronized long getBufferedBytes() {
+        return buffered;
+    }
+
+    /**
+     * Retrieves the number of messages dropped incomplete or invalid.
+     *
+     * @return Long representing the drop count.
+     */
+    public long getDropCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Drops incomplete messages whose timeout has passed. Messages are kept
+     * oldest first, so only the expired ones at the front are looked at.
+     *
+     * @param now Current System.nanoTime().
+     */
+    private void expire(long now) {
+        Iterator<Map.Entry<Key, Partial>> it = partials.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Partial> entry = it.next();
+            if (now - entry.getValue().deadline < 0) {
+                return;
+            }
+            it.remove();
+            forget(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Drops an incomplete message.
+     *
+     * @param key Key of the message.
+     */
+    private void drop(Key key) {
+        forget(key, partials.remove(key));
+    }
+
+    /**
+     * Releases the bytes of a message removed from the map.
+     *
+     * @param key Key of the message.
+     * @param part The removed message.
+     */
+    private void forget(Key key, Partial part) {
+        buffered -= part.data.length;
+        dropped.increment();
+        if (key.equals(lastKey)) {
+            last = null;
+            lastKey = null;
+        }
+    }
+
+    /**
+     * Key class identifying a fragmented message by sender address, sender UID
+     * and message ID.
+     */
+    private static final class Key {
+
+        private final InetSocketAddress source; // Address the fragments come from.
+        private final AgentId sender; // UID of the sending agent.
+        private final int id; // ID of the message.
+
+        /**
+         * Constructor for Key.
+         *
+         * @param from Address the fragments come from.
+         * @param senderUID UID of the sending agent.
+         * @param messageId ID of the message.
+         */
+        Key(InetSocketAddress from, AgentId senderUID, int messageId) {
+            source = from;
+            sender = senderUID;
+            id = messageId;
+        }
+
+        /**
+         * Checks whether a fragment belongs to the message with this key.
+         *
+         * @param fragment The fragment.
+         * @param messageId ID of the fragment's message.
+         * @return Boolean representing whether the fragment matches.
+         */
+        boolean matches(Message fragment, int messageId) {
+            return id == messageId && sender.equals(fragment.getSenderUID())
+                    && Objects.equals(source, fragment.getSource());
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return id == key.id && sender.equals(key.sender) && Objects.equals(source, key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Objects.hashCode(source) + sender.hashCode()) + id;
+        }
+    }
+
+    /**
+     * Partial class holding the fragments of one message received so far.
+     */
+    private static final class Partial {
+
+        private final byte[] data; // Payload being put together.
+        private final int count; // Number of fragments.
+        private final BitSet received; // Indexes of the fragments received.
+        private int missing; // Fragments still to arrive.
+        private final long deadline; // System.nanoTime() after which the message is dropped.
+
+        /**
+         * Constructor for Partial.
+         *
+         * @param total Length of the whole payload.
+         * @param fragments Number of fragments.
+         * @param expiry System.nanoTime() after which the message is dropped.
+         */
+        Partial(int total, int fragments, long expiry) {
+            data = new byte[total];
+            count = fragments;
+            received = new BitSet(fragments);
+            missing = fragments;
+            deadline = expiry;
+        }
+    }
+}
@@ -0,0 +1,595 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ReliableChannel class that delivers frames to other AgentSystems exactly
+ * once and in order over the shared UDP channel, without a connection per
+ * agent pair.
+ *
+ * Every frame sent to a peer address is wrapped in a RELIABLE envelope that
+ * carries the session number of the sender's state for that peer, a
+ * per-peer sequence number, the oldest sequence number still unacknowledged
+ * and the time it was sent. The receiver routes envelopes in sequence order, holding early ones back, and
+ * answers each burst of datagrams with one ACK per peer: a cumulative sequence
+ * number, a bitmap of the 64 sequence numbers after it that arrived early,
+ * and the send time of the latest envelope, echoed back. The sender keeps a
+ * sliding window of unacknowledged frames; it retransmits a frame once its
+ * retransmission timeout, derived from the echoed round-trip times, passes,
+ * and retransmits the holes a selective ACK reveals straight away.
+ *
+ * Every binary AgentSystem answers envelopes, so a sender may turn reliable
+ * delivery on without its peers doing the same.
+ *
+ * The state of a peer is dropped once nothing was sent to or received from
+ * it for the idle time, the AgentDirectory's time to live, and nothing is in
+ * flight. Each peer state has its own session number, so if the peer is heard
+ * from again, both sides start afresh as if after a restart.
+ */
+public class ReliableChannel implements Runnable {
+
+    public static final String ENABLED_PROPERTY = "agentsystem.reliable"; // Whether to send reliably.
+    public static final String WINDOW_PROPERTY = "agentsystem.reliable.window"; // Frames in flight per peer.
+
+    private static final int ENVELOPE_SIZE = 20; // Session, sequence number, send base and send time before the frame.
+    public static final int OVERHEAD = MessageCodec.HEADER_SIZE + ENVELOPE_SIZE; // Bytes an envelope adds to a frame.
+    private static final int TIME_OFFSET = MessageCodec.HEADER_SIZE + 12; // Send time within an envelope.
+    private static final int ACK_SIZE = 24; // Session, cumulative sequence number, selective ACK bitmap and echoed time.
+    private static final int SACK_BITS = 64; // Sequence numbers covered by the selective ACK bitmap.
+    private static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200); // Timeout before an RTT sample.
+    private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(2); // Shortest retransmission timeout.
+    private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(2); // Longest retransmission timeout.
+
+    private final Dispatcher dispatcher; // Sends envelopes, retransmissions and ACKs.
+    private final Batcher batcher; // Coalesces first transmissions, or null if batching is off.
+    private final int window; // Frames in flight per peer, and early frames held back per peer.
+    private final long idleNanos; // Silence after which a peer's state is dropped.
+    private final Map<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>(); // State per peer address.
+    private final ArrayList<Peer> ackPending = new ArrayList<>(); // Peers owed an ACK, used by the reactor thread only.
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(MessageCodec.HEADER_SIZE + ACK_SIZE); // Reactor thread only.
+    private final LongAdder retransmits = new LongAdder(); // Frames sent again.
+    private final LatencyRecorder rttRecorder = new LatencyRecorder(); // Round-trip times of acknowledged frames.
+    private final Thread timer; // Thread retransmitting frames whose timeout passed and dropping idle peers.
+    private volatile boolean running = true; // Whether the timer thread should keep running.
+
+    /**
+     * Constructor for ReliableChannel. Starts the retransmission timer thread.
+     *
+     * @param sender Dispatcher that sends the frames.
+     * @param coalescer Batcher for first transmissions, or null to send
+     * them directly.
+     * @param windowSize Frames in flight per peer.
+     * @param idle Silence after which a peer's state is dropped.
+     * @param unit Unit of the idle time.
+     */
+    public ReliableChannel(Dispatcher sender, Batcher coalescer, int windowSize, long idle, TimeUnit unit) {
+        dispatcher = sender;
+        batcher = coalescer;
+        window = Math.max(1, windowSize);
+        idleNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), unit.toNanos(idle));
+        timer = new Thread(this, "agent-retransmit");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * Sends a frame reliably. If the window to the peer is full, the calling
+     * thread waits for ACKs, except on the reactor thread, which delivers the
+     * ACKs itself and so drops the frame instead.
+     *
+     * @param frame Buffer holding a binary frame between its position and
+     * limit; its position is left unchanged.
+     * @param address The address to send the frame to.
+     * @return Boolean representing whether the frame was accepted for
+     * delivery.
+     */
+    public boolean send(ByteBuffer frame, InetSocketAddress address) {
+        while (true) {
+            Peer peer = peer(address);
+            synchronized (peer) {
+                if (!peer.evicted) {
+                    return peer.send(frame, !dispatcher.isReactorThread());
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieves the state of a peer, creating it if there is none.
+     *
+     * @param address Address of the peer.
+     * @return Peer holding the state; once its lock is held, it must be
+     * checked not to have been evicted meanwhile.
+     */
+    private Peer peer(InetSocketAddress address) {
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            peers.putIfAbsent(address, new Peer(address));
+            peer = peers.get(address);
+        }
+        return peer;
+    }
+
+    /**
+     * Handles the RELIABLE envelope at the buffer's position: routes the frame
+     * inside it, and any early frames it completes, in sequence order. Called
+     * by the reactor thread, which must call flushAcks once the datagrams it
+     * has received are handled. Advances past the envelope.
+     *
+     * @param in Buffer holding a RELIABLE envelope.
+     * @param from Address the envelope was received from.
+     */
+    public void receive(ByteBuffer in, InetSocketAddress from) {
+        int start = in.position();
+        int end = start + MessageCodec.HEADER_SIZE + MessageCodec.payloadLength(in);
+        int body = start + MessageCodec.HEADER_SIZE;
+        while (end - body >= ENVELOPE_SIZE) {
+            Peer peer = peer(from);
+            synchronized (peer) {
+                if (!peer.evicted) {
+                    peer.received(in.getInt(body), in.getInt(body + 4), in.getInt(body + 8), in.getLong(body + 12),
+                            in, body + ENVELOPE_SIZE, end);
+                    break;
+                }
+            }
+        }
+        in.position(end);
+    }
+
+    /**
+     * Handles the ACK at the buffer's position and advances past it.
+     *
+     * @param in Buffer holding an ACK frame.
+     * @param from Address the ACK was received from.
+     */
+    public void acknowledge(ByteBuffer in, InetSocketAddress from) {
+        int start = in.position();
+        int length = MessageCodec.payloadLength(in);
+        int body = start + MessageCodec.HEADER_SIZE;
+        Peer peer = peers.get(from);
+        if (peer != null && length >= ACK_SIZE) {
+            peer.acknowledged(in.getInt(body), in.getInt(body + 4), in.getLong(body + 8), in.getLong(body + 16),
+                    System.nanoTime());
+        }
+        in.position(body + length);
+    }
+
+    /**
+     * Sends one ACK to every peer whose envelopes were received since the
+     * last call. Called by the reactor thread after each burst of datagrams,
+     * so that a burst is acknowledged with one datagram.
+     */
+    public void flushAcks() {
+        for (int i = 0; i < ackPending.size(); i++) {
+            ackPending.get(i).sendAck();
+        }
+        ackPending.clear();
+    }
+
+    /**
+     * Waits until every frame sent so far is acknowledged, e.g. before the
+     * AgentSystem exits.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of the timeout.
+     * @return Boolean representing whether everything was acknowledged in
+     * time.
+     */
+    public boolean awaitAcked(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Peer peer : peers.values()) {
+            if (!peer.awaitAcked(deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves the number of frames sent again because they were not
+     * acknowledged in time.
+     *
+     * @return Long representing the retransmission count.
+     */
+    public long getRetransmitCount() {
+        return retransmits.sum();
+    }
+
+    /**
+     * Retrieves the histogram of round-trip times measured from
+     * acknowledgements, in nanoseconds.
+     *
+     * @return LatencyRecorder of round-trip times.
+     */
+    public LatencyRecorder getRttRecorder() {
+        return rttRecorder;
+    }
+
+    /**
+     * Retransmits frames as their timeouts pass, sleeping until the earliest
+     * timeout of any peer, and drops the state of idle peers.
+     */
+    @Override
+    public void run() {
+        long sweepNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), idleNanos / 4);
+        long nextSweep = System.nanoTime() + sweepNanos;
+        while (running) {
+            long now = System.nanoTime();
+            long wait = Long.MAX_VALUE;
+            boolean sweep = now - nextSweep >= 0;
+            for (Peer peer : peers.values()) {
+                wait = Math.min(wait, peer.retransmitExpired(now));
+                if (sweep) {
+                    peer.evictIfIdle(now);
+                }
+            }
+            if (sweep) {
+                nextSweep = now + sweepNanos;
+            }
+            if (!peers.isEmpty()) {
+                wait = Math.min(wait, Math.max(0, nextSweep - now));
+            }
+            if (wait == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    /**
+     * Stops the timer thread. Frames still unacknowledged are not sent again.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(timer);
+    }
+
+    /**
+     * Peer class holding the send window and receive state for one remote
+     * address. Both are guarded by the peer's lock, though the receive side
+     * is used by the reactor thread only.
+     */
+    private class Peer {
+
+        private final InetSocketAddress address; // Where the peer receives.
+        private final int session; // Random number telling this peer state from earlier ones.
+        private long lastActive = System.nanoTime(); // System.nanoTime() of the latest frame sent, envelope or ACK received.
+        private boolean evicted; // Whether the state was dropped; a new Peer takes its place.
+
+        // Send side.
+        private int base; // Oldest unacknowledged sequence number.
+        private int nextSeq; // Sequence number of the next frame sent.
+        private final ByteBuffer[] sent = new ByteBuffer[window]; // Envelopes in flight, by sequence number.
+        private final long[] sentAt = new long[window]; // System.nanoTime() of the last transmission.
+        private final boolean[] acked = new boolean[window]; // Whether a selective ACK covered the frame.
+        private long srtt; // Smoothed round-trip time, 0 before the first sample.
+        private long rttvar; // Round-trip time variation.
+        private long rto = INITIAL_RTO_NANOS; // Retransmission timeout.
+
+        // Receive side.
+        private int remoteSession; // Session of the peer, 0 before it was heard from.
+        private int expected; // Next sequence number to route.
+        private final Message[] early = new Message[window]; // Frames received ahead of sequence.
+        private final int[] earlySeq = new int[window]; // Sequence numbers of the early frames.
+        private final boolean[] held = new boolean[window]; // Whether an early frame was received; it may not decode.
+        private long echo; // Send time of the latest envelope, to echo in the next ACK.
+        private boolean ackOwed; // Whether the peer is in ackPending.
+
+        /**
+         * Constructor for Peer.
+         *
+         * @param remote Where the peer receives.
+         */
+        Peer(InetSocketAddress remote) {
+            address = remote;
+            int random;
+            do {
+                random = ThreadLocalRandom.current().nextInt();
+            } while (random == 0); // 0 marks a peer that has not been heard from.
+            session = random;
+        }
+
+        /**
+         * Drops this peer's state if nothing was sent to or received from the
+         * peer for the idle time and nothing is in flight.
+         *
+         * @param now Current System.nanoTime().
+         */
+        synchronized void evictIfIdle(long now) {
+            if (base == nextSeq && now - lastActive >= idleNanos) {
+                evicted = true;
+                peers.remove(address, this);
+            }
+        }
+
+        /**
+         * Slot of a sequence number in the window arrays.
+         *
+         * @param seq The sequence number.
+         * @return Integer representing the array index.
+         */
+        private int slot(int seq) {
+            return Math.floorMod(seq, window);
+        }
+
+        /**
+         * Wraps a frame in an envelope, keeps it for retransmission and sends
+         * it.
+         *
+         * @param frame Buffer holding a binary frame.
+         * @param block Whether to wait for room in the window.
+         * @return Boolean representing whether the frame was accepted.
+         */
+        synchronized boolean send(ByteBuffer frame, boolean block) {
+            while (nextSeq - base >= window) {
+                if (!block) {
+                    Logger.getLogger(ReliableChannel.class.getName()).log(Level.WARNING,
+                            "Send window to {0} full, dropped message", address);
+                    return false;
+                }
+                try {
+                    wait(TimeUnit.NANOSECONDS.toMillis(rto) + 1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt(); // Sender was cancelled.
+                    return false;
+                }
+            }
+            int length = frame.remaining();
+            int seq = nextSeq;
+            int i = slot(seq);
+            ByteBuffer envelope = sent[i];
+            int size = MessageCodec.HEADER_SIZE + ENVELOPE_SIZE + length;
+            if (envelope == null || envelope.capacity() < size) {
+                envelope = ByteBuffer.allocateDirect(Math.max(2048, Integer.highestOneBit(size - 1) << 1));
+                sent[i] = envelope;
+            }
+            envelope.clear();
+            MessageCodec.encodeHeader(envelope, MessageType.RELIABLE, MessageCodec.senderMost(frame),
+                    MessageCodec.senderLeast(frame), MessageCodec.targetMost(frame), MessageCodec.targetLeast(frame),
+                    ENVELOPE_SIZE + length);
+            envelope.putInt(session);
+            envelope.putInt(seq);
+            envelope.putInt(base);
+            long now = System.nanoTime();
+            envelope.putLong(now);
+            envelope.put(envelope.position(), frame, frame.position(), length);
+            envelope.position(envelope.position() + length);
+            envelope.flip();
+
+            boolean idle = base == nextSeq;
+            nextSeq++;
+            sentAt[i] = now;
+            lastActive = now;
+            acked[i] = false;
+            if (batcher != null) {
+                batcher.send(envelope, address);
+            } else {
+                dispatcher.send(envelope, address);
+            }
+            if (idle) {
+                LockSupport.unpark(timer); // The timer must watch this peer's timeout.
+            }
+            return true;
+        }
+
+        /**
+         * Applies an ACK from the peer: slides the window past the cumulative
+         * sequence number, marks the selectively acknowledged frames, and
+         * retransmits the holes below them.
+         *
+         * @param ackSession Session the ACK is for.
+         * @param cumulative Next sequence number the peer expects.
+         * @param sack Bitmap of the sequence numbers after it already
+         * received.
+         * @param sentTime Send time of the latest envelope the peer received.
+         * @param now System.nanoTime() at which the ACK arrived.
+         */
+        synchronized void acknowledged(int ackSession, int cumulative, long sack, long sentTime, long now) {
+            if (ackSession != session) {
+                return; // ACK for an earlier run of this AgentSystem, or for evicted peer state.
+            }
+            lastActive = now;
+            if (sentTime != 0) {
+                // Retransmissions carry their own send time, so the echo times exactly one trip.
+                sample(now - sentTime);
+            }
+            if (cumulative - base > 0 && cumulative - nextSeq <= 0) {
+                base = cumulative;
+                notifyAll(); // Room in the window.
+            }
+            int highest = base;
+            for (int b = 0; b < SACK_BITS && (sack >>> b) != 0; b++) {
+                int seq = cumulative + 1 + b;
+                if (seq - nextSeq >= 0) {
+                    break;
+                }
+                if ((sack & (1L << b)) != 0 && seq - base >= 0) {
+                    acked[slot(seq)] = true;
+                    highest = seq;
+                }
+            }
+            long threshold = srtt > 0 ? srtt + rttvar : rto;
+            for (int seq = base; seq - highest < 0; seq++) {
+                int i = slot(seq);
+                if (!acked[i] && now - sentAt[i] >= threshold) {
+                    retransmit(i, now); // Hole below frames the peer already has.
+                }
+            }
+        }
+
+        /**
+         * Retransmits every unacknowledged frame whose timeout passed, and
+         * backs the timeout off if the oldest one did.
+         *
+         * @param now Current System.nanoTime().
+         * @return Long representing the nanoseconds until the next timeout, or
+         * Long.MAX_VALUE if nothing is in flight.
+         */
+        synchronized long retransmitExpired(long now) {
+            long wait = Long.MAX_VALUE;
+            boolean expired = false;
+            for (int seq = base; seq != nextSeq; seq++) {
+                int i = slot(seq);
+                if (acked[i]) {
+                    continue;
+                }
+                if (now - sentAt[i] >= rto) {
+                    expired |= seq == base;
+                    retransmit(i, now);
+                }
+                wait = Math.min(wait, sentAt[i] + rto - now);
+            }
+            if (expired) {
+                rto = Math.min(rto * 2, MAX_RTO_NANOS);
+            }
+            return wait;
+        }
+
+        /**
+         * Sends a kept envelope again.
+         *
+         * @param i Slot of the envelope.
+         * @param now Current System.nanoTime().
+         */
+        private void retransmit(int i, long now) {
+            sent[i].putLong(TIME_OFFSET, now);
+            dispatcher.send(sent[i], address);
+            sentAt[i] = now;
+            retransmits.increment();
+        }
+
+        /**
+         * Updates the round-trip estimate and the retransmission timeout as
+         * in RFC 6298.
+         *
+         * @param rtt Round-trip time measured, in nanoseconds.
+         */
+        private void sample(long rtt) {
+            rttRecorder.record(rtt);
+            if (srtt == 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+                srtt = (7 * srtt + rtt) / 8;
+            }
+            rto = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, srtt + 4 * rttvar));
+        }
+
+        /**
+         * Waits until every frame sent to the peer is acknowledged.
+         *
+         * @param deadline System.nanoTime() after which to give up.
+         * @return Boolean representing whether everything was acknowledged.
+         */
+        synchronized boolean awaitAcked(long deadline) {
+            while (base != nextSeq) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Routes a received envelope's frame if it is next in sequence, holds
+         * it back if it is early, and owes the peer an ACK either way.
+         *
+         * @param envSession Session of the sender.
+         * @param seq Sequence number of the envelope.
+         * @param senderBase Oldest sequence number the sender has not had
+         * acknowledged.
+         * @param sentTime Send time of the envelope, to echo back.
+         * @param in Buffer holding the envelope.
+         * @param frameStart Index of the wrapped frame.
+         * @param end Index just past the envelope.
+         */
+        synchronized void received(int envSession, int seq, int senderBase, long sentTime, ByteBuffer in, int frameStart, int end) {
+            if (envSession != remoteSession) {
+                // The peer started (again): pick up where its window starts.
+                remoteSession = envSession;
+                expected = senderBase;
+                Arrays.fill(early, null);
+                Arrays.fill(held, false);
+            }
+            echo = sentTime;
+            lastActive = System.nanoTime();
+            if (!ackOwed) {
+                ackOwed = true;
+                ackPending.add(this);
+            }
+            int offset = seq - expected;
+            if (offset < 0 || offset >= window) {
+                return; // Duplicate, or beyond the window: the ACK tells the sender where we are.
+            }
+            in.position(frameStart);
+            if (!MessageCodec.isFrame(in) || frameStart + MessageCodec.HEADER_SIZE + MessageCodec.payloadLength(in) != end) {
+                return; // Damaged envelope.
+            }
+            if (offset > 0) {
+                int i = slot(seq);
+                early[i] = MessageCodec.decode(in, address); // Held back, so not a pooled view; null if of unknown type.
+                earlySeq[i] = seq;
+                held[i] = true;
+                return;
+            }
+            expected++;
+            Message msg = MessageView.read(in, address);
+            if (msg != null) {
+                AgentSystem.route(msg);
+                msg.release();
+            }
+            int i = slot(expected);
+            while (held[i] && earlySeq[i] == expected) {
+                Message next = early[i];
+                early[i] = null;
+                held[i] = false;
+                expected++;
+                if (next != null) {
+                    AgentSystem.route(next); // A frame of unknown type is skipped, as when in sequence.
+                }
+                i = slot(expected);
+            }
+        }
+
+        /**
+         * Sends the peer an ACK of everything received from it so far.
+         */
+        synchronized void sendAck() {
+            ackOwed = false;
+            long sack = 0;
+            for (int b = 0; b < SACK_BITS && b + 1 < window; b++) {
+                int seq = expected + 1 + b;
+                int i = slot(seq);
+                if (held[i] && earlySeq[i] == seq) {
+                    sack |= 1L << b;
+                }
+            }
+            ackBuffer.clear();
+            MessageCodec.encodeHeader(ackBuffer, MessageType.ACK, 0, 0, 0, 0, ACK_SIZE);
+            ackBuffer.putInt(remoteSession);
+            ackBuffer.putInt(expected);
+            ackBuffer.putLong(sack);
+            ackBuffer.putLong(echo);
+            ackBuffer.flip();
+            dispatcher.send(ackBuffer, address);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring class that is a bounded, lock-free queue any number of threads may add
+ * to and take from at once. It follows Dmitry Vyukov's bounded queue: every
+ * slot carries a sequence number that tells producers and consumers whether
+ * it is free or filled, and both ends are claimed with a compare-and-set, so
+ * no side ever takes a lock.
+ *
+ * offer and poll move elements in and out of the slots. Users that keep
+ * preallocated elements in the slots instead, such as AgentLog, use the steps
+ * directly: claim a free slot, fill its element and publish it; take a filled
+ * slot, read its element and free it.
+ */
+public final class Ring<E> {
+
+    public static final int MAX_CAPACITY = 1 << 30; // Largest capacity, the largest int power of two.
+
+    private final int mask; // Capacity - 1, to turn positions into indexes.
+    private final AtomicReferenceArray<E> slots; // Elements in the ring.
+    private final AtomicLongArray sequences; // Sequence number of every slot.
+    private final AtomicLong tail = new AtomicLong(); // Position of the next slot to claim.
+    private final AtomicLong head = new AtomicLong(); // Position of the next slot to take.
+
+    /**
+     * Constructor for Ring.
+     *
+     * @param capacity Maximum number of elements, rounded up to a power of
+     * two, at least 2.
+     * @throws IllegalArgumentException if capacity is above MAX_CAPACITY.
+     */
+    public Ring(int capacity) {
+        int size = roundToPowerOfTwo(capacity);
+        mask = size - 1;
+        slots = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element.
+     *
+     * @param element The element to add.
+     * @return Boolean representing whether there was a free slot.
+     */
+    public boolean offer(E element) {
+        long pos = claim();
+        if (pos < 0) {
+            return false;
+        }
+        set(pos, element);
+        publish(pos);
+        return true;
+    }
+
+    /**
+     * Takes the oldest element.
+     *
+     * @return Element taken, or null if the ring is empty.
+     */
+    public E poll() {
+        long pos = take();
+        if (pos < 0) {
+            return null;
+        }
+        E element = get(pos);
+        set(pos, null);
+        free(pos);
+        return element;
+    }
+
+    /**
+     * Claims a free slot to fill. The slot must be published once filled.
+     *
+     * @return Long representing the position of the slot, or -1 if the ring
+     * is full.
+     */
+    public long claim() {
+        long pos = tail.get();
+        while (true) {
+            long diff = sequences.get((int) pos & mask) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return -1; // Full.
+            } else {
+                pos = tail.get(); // Another thread claimed the slot.
+            }
+        }
+    }
+
+    /**
+     * Hands a claimed and filled slot to the consumers.
+     *
+     * @param pos Position of the slot.
+     */
+    public void publish(long pos) {
+        sequences.set((int) pos & mask, pos + 1);
+    }
+
+    /**
+     * Claims the oldest filled slot to read. The slot must be freed once read.
+     *
+     * @return Long representing the position of the slot, or -1 if the ring
+     * is empty.
+     */
+    public long take() {
+        long pos = head.get();
+        while (true) {
+            long diff = sequences.get((int) pos & mask) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return -1; // Empty.
+            } else {
+                pos = head.get(); // Another thread took the slot.
+            }
+        }
+    }
+
+    /**
+     * Hands a taken and read slot back to the producers.
+     *
+     * @param pos Position of the slot.
+     */
+    public void free(long pos) {
+        sequences.set((int) pos & mask, pos + mask + 1); // Free the slot for the next lap.
+    }
+
+    /**
+     * Retrieves the element in a slot.
+     *
+     * @param pos Position of the slot.
+     * @return Element in the slot, or null if there is none.
+     */
+    public E get(long pos) {
+        return slots.get((int) pos & mask);
+    }
+
+    /**
+     * Puts an element into a slot. Publishing or freeing the slot afterwards
+     * makes the element visible to the other side.
+     *
+     * @param pos Position of the slot.
+     * @param element The element.
+     */
+    public void set(long pos, E element) {
+        slots.lazySet((int) pos & mask, element);
+    }
+
+    /**
+     * Retrieves the maximum number of elements: the capacity asked for
+     * rounded up to a power of two.
+     *
+     * @return Integer representing the capacity.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Retrieves the number of slots claimed but not yet taken.
+     *
+     * @return Integer representing the number of elements.
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * Retrieves the position of the next slot to claim, e.g. to wait until
+     * every element added so far has been taken.
+     *
+     * @return Long representing the number of slots ever claimed.
+     */
+    public long getTail() {
+        return tail.get();
+    }
+
+    /**
+     * Rounds a ring capacity up to the next power of two, so that positions
+     * turn into indexes with a mask.
+     *
+     * @param capacity Capacity asked for.
+     * @return Integer representing the power of two at least capacity, and
+     * at least 2.
+     * @throws IllegalArgumentException if capacity is above MAX_CAPACITY.
+     */
+    static int roundToPowerOfTwo(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity " + capacity + " is above " + MAX_CAPACITY);
+        }
+        return capacity <= 2 ? 2 : (-1 >>> Integer.numberOfLeadingZeros(capacity - 1)) + 1;
+    }
+}
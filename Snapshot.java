@@ -0,0 +1,365 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot class that saves what an AgentSystem learned and its agents built
+ * up, so that a restarted AgentSystem is productive at once: the ID prefix
+ * and counter, the UID and saved state of every local agent, and the peer
+ * table of the AgentDirectory and the remote subscriptions of Topics.
+ * Restored agents keep their UIDs, so the directories of other AgentSystems
+ * stay valid, and restored peers are found and published to without
+ * broadcasting. Peers are restored with the time to live they had left when
+ * the snapshot was written, less the time since; expired ones are dropped.
+ *
+ * An ID prefix must never be used by two running AgentSystems. A snapshot is
+ * owned by the AgentSystem holding the lock on its ".lock" file, and its IDs
+ * are only continued on the host and at the path it was written to, so a
+ * snapshot copied elsewhere restores its agents with new UIDs.
+ *
+ * The file is binary: a magic number and version, the time it was written,
+ * the owner as host and path, the ID prefix and counter, then the peers,
+ * each as UID, classname, address, port and milliseconds left to live, then
+ * the remote subscriptions, each as topic and addresses, then the agents,
+ * each as classname, UID and state. It is written to a temporary file and
+ * moved into place, so a crash while writing leaves the previous snapshot
+ * intact.
+ */
+public class Snapshot {
+
+    public static final String FILE_PROPERTY = "agentsystem.snapshot.file"; // Snapshot to restore and save; unset = none.
+
+    private static final int MAGIC = 0x41475353; // "AGSS".
+    private static final int VERSION = 2; // Version of the file format.
+
+    private final String owner; // Host and path the snapshot was written to.
+    private final long node; // ID prefix of the saved AgentSystem.
+    private final long counter; // Counter of its last ID.
+    private final List<AgentDirectory.Entry> peers = new ArrayList<>(); // Peers still valid, with their time left.
+    private final List<Long> peerLives = new ArrayList<>(); // Nanoseconds each peer has left to live.
+    private final Map<String, List<InetSocketAddress>> subscriptions = new HashMap<>(); // Remote subscribers by topic.
+    private final Map<String, ArrayDeque<SavedAgent>> agents = new HashMap<>(); // Saved agents by classname, in order.
+    private boolean sameIds; // Whether the IDs of the saved AgentSystem were continued.
+
+    /**
+     * Constructor for Snapshot.
+     *
+     * @param savedOwner Host and path the snapshot was written to.
+     * @param savedNode ID prefix of the saved AgentSystem.
+     * @param savedCounter Counter of its last ID.
+     */
+    private Snapshot(String savedOwner, long savedNode, long savedCounter) {
+        owner = savedOwner;
+        node = savedNode;
+        counter = savedCounter;
+    }
+
+    /**
+     * Writes a snapshot of an AgentSystem. Agents that are still running are
+     * saved without their state, since it may be changing.
+     *
+     * @param file File to write.
+     * @param localAgents The local agents.
+     * @param directory Directory of the agents announced on the network.
+     * @param topics Topics with the remote subscriptions.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(Path file, Agent[] localAgents, AgentDirectory directory, Topics topics) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long now = System.nanoTime();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(owner(file));
+            out.writeLong(AgentId.getNode());
+            out.writeLong(AgentId.getCounter());
+
+            List<AgentDirectory.Entry> entries = directory.getAll();
+            out.writeInt(entries.size());
+            for (AgentDirectory.Entry entry : entries) {
+                writeId(out, entry.getUID());
+                out.writeUTF(entry.getClassName());
+                writeAddress(out, entry.getAddress());
+                out.writeLong(TimeUnit.NANOSECONDS.toMillis(entry.getRemainingNanos(now)));
+            }
+
+            Map<String, List<InetSocketAddress>> remote = new HashMap<>();
+            for (String topic : topics.getRemoteTopics()) {
+                List<InetSocketAddress> addresses = new ArrayList<>(topics.getRemoteSubscribers(topic));
+                if (!addresses.isEmpty()) {
+                    remote.put(topic, addresses);
+                }
+            }
+            out.writeInt(remote.size());
+            for (Map.Entry<String, List<InetSocketAddress>> topic : remote.entrySet()) {
+                out.writeUTF(topic.getKey());
+                out.writeInt(topic.getValue().size());
+                for (InetSocketAddress address : topic.getValue()) {
+                    writeAddress(out, address);
+                }
+            }
+
+            out.writeInt(localAgents.length);
+            for (Agent ag : localAgents) {
+                Agent.State state = ag.getState();
+                byte[] saved = state == Agent.State.RUNNING || state == Agent.State.STOPPING ? null : ag.saveState();
+                out.writeUTF(ag.getClassName());
+                writeId(out, ag.getId());
+                out.writeInt(saved == null ? -1 : saved.length);
+                if (saved != null) {
+                    out.write(saved);
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param file File to read.
+     * @return Snapshot read.
+     * @throws IOException if the file cannot be read or is not a snapshot.
+     */
+    public static Snapshot read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a snapshot of this version");
+            }
+            long elapsedMs = Math.max(0, System.currentTimeMillis() - in.readLong());
+            Snapshot snapshot = new Snapshot(in.readUTF(), in.readLong(), in.readLong());
+
+            for (int i = in.readInt(); i > 0; i--) {
+                AgentId uid = readId(in);
+                String className = in.readUTF();
+                InetSocketAddress address = readAddress(in);
+                long leftMs = in.readLong() - elapsedMs;
+                if (leftMs > 0) {
+                    snapshot.peers.add(new AgentDirectory.Entry(uid, className, address, 0));
+                    snapshot.peerLives.add(TimeUnit.MILLISECONDS.toNanos(leftMs));
+                }
+            }
+
+            for (int i = in.readInt(); i > 0; i--) {
+                String topic = in.readUTF();
+                List<InetSocketAddress> addresses = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    addresses.add(readAddress(in));
+                }
+                snapshot.subscriptions.put(topic, addresses);
+            }
+
+            for (int i = in.readInt(); i > 0; i--) {
+                String className = in.readUTF();
+                AgentId uid = readId(in);
+                int length = in.readInt();
+                byte[] state = null;
+                if (length >= 0) {
+                    state = new byte[length];
+                    in.readFully(state);
+                }
+                snapshot.agents.computeIfAbsent(className, k -> new ArrayDeque<>()).add(new SavedAgent(uid, state));
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Takes ownership of a snapshot by locking its ".lock" file. The lock is
+     * held until the returned channel is closed or the process exits, so a
+     * second AgentSystem started with the same snapshot is refused rather
+     * than running with the same ID prefix.
+     *
+     * @param file The snapshot file, which need not exist yet.
+     * @return FileChannel holding the lock, or null if another AgentSystem
+     * owns the snapshot.
+     * @throws IOException if the lock file cannot be opened.
+     */
+    public static FileChannel lock(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (channel.tryLock() != null) {
+                return channel;
+            }
+        } catch (OverlappingFileLockException ex) {
+            // Already locked by this process.
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Continues the IDs of the saved AgentSystem, so that restored agents keep
+     * their UIDs. Must be called before any agent is created. The IDs are
+     * only continued if the snapshot was written on this host to the same
+     * path; a copy made elsewhere could be restored alongside the original.
+     *
+     * @param file The file the snapshot was read from.
+     * @return Boolean representing whether the IDs were continued; if not,
+     * agents are restored with new UIDs.
+     */
+    public boolean resumeIds(Path file) {
+        sameIds = owner.equals(owner(file)) && AgentId.resume(node, counter);
+        return sameIds;
+    }
+
+    /**
+     * Restores the next saved agent of the same class into a newly created
+     * agent: its UID, if resumeIds continued the IDs, and its state.
+     *
+     * @param agent The agent, not yet registered.
+     * @return Boolean representing whether a saved agent was restored.
+     */
+    public boolean restore(Agent agent) {
+        ArrayDeque<SavedAgent> saved = agents.get(agent.getClassName());
+        SavedAgent next = saved == null ? null : saved.poll();
+        if (next == null) {
+            return false;
+        }
+        if (sameIds) {
+            agent.restoreId(next.uid);
+        }
+        if (next.state != null) {
+            agent.restoreState(next.state);
+        }
+        return true;
+    }
+
+    /**
+     * Puts the saved peers that are still valid back into a directory.
+     *
+     * @param directory The directory.
+     * @return Integer representing the number of peers restored.
+     */
+    public int restorePeers(AgentDirectory directory) {
+        for (int i = 0; i < peers.size(); i++) {
+            AgentDirectory.Entry peer = peers.get(i);
+            directory.record(peer.getUID(), peer.getClassName(), peer.getAddress(), peerLives.get(i));
+        }
+        return peers.size();
+    }
+
+    /**
+     * Puts the saved remote subscriptions back into Topics, so that restored
+     * agents publish to the AgentSystems that subscribed before the restart.
+     *
+     * @param topics The topics.
+     * @return Integer representing the number of subscriptions restored.
+     */
+    public int restoreSubscriptions(Topics topics) {
+        int restored = 0;
+        for (Map.Entry<String, List<InetSocketAddress>> topic : subscriptions.entrySet()) {
+            for (InetSocketAddress address : topic.getValue()) {
+                topics.addRemote(topic.getKey(), address);
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Identifies the owner of a snapshot by this host and the absolute path of
+     * the file.
+     *
+     * @param file The snapshot file.
+     * @return String holding the host name and path.
+     */
+    private static String owner(Path file) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            host = "";
+        }
+        return host + ":" + file.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Writes an address as its IP length, IP and port.
+     *
+     * @param out Stream to write to.
+     * @param address The address.
+     * @throws IOException if writing fails.
+     */
+    private static void writeAddress(DataOutputStream out, InetSocketAddress address) throws IOException {
+        byte[] ip = address.getAddress().getAddress();
+        out.writeByte(ip.length);
+        out.write(ip);
+        out.writeShort(address.getPort());
+    }
+
+    /**
+     * Reads an address written by writeAddress.
+     *
+     * @param in Stream to read from.
+     * @return InetSocketAddress that was read.
+     * @throws IOException if reading fails.
+     */
+    private static InetSocketAddress readAddress(DataInputStream in) throws IOException {
+        byte[] ip = new byte[in.readUnsignedByte()];
+        in.readFully(ip);
+        return new InetSocketAddress(InetAddress.getByAddress(ip), in.readUnsignedShort());
+    }
+
+    /**
+     * Writes an ID as its two longs.
+     *
+     * @param out Stream to write to.
+     * @param id The ID.
+     * @throws IOException if writing fails.
+     */
+    private static void writeId(DataOutputStream out, AgentId id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    /**
+     * Reads an ID written by writeId.
+     *
+     * @param in Stream to read from.
+     * @return AgentId that was read.
+     * @throws IOException if reading fails.
+     */
+    private static AgentId readId(DataInputStream in) throws IOException {
+        return new AgentId(in.readLong(), in.readLong());
+    }
+
+    /**
+     * SavedAgent class holding the UID and state of one saved agent.
+     */
+    private static final class SavedAgent {
+
+        private final AgentId uid; // UID the agent had.
+        private final byte[] state; // State it saved, or null.
+
+        /**
+         * Constructor for SavedAgent.
+         *
+         * @param id UID the agent had.
+         * @param saved State it saved, or null.
+         */
+        SavedAgent(AgentId id, byte[] saved) {
+            uid = id;
+            state = saved;
+        }
+    }
+}
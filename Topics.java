@@ -0,0 +1,194 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Topics class that keeps the subscriptions of the publish/subscribe API:
+ * the local agents subscribed to each topic, and the remote AgentSystems that
+ * have at least one subscriber to it. A publication therefore reaches each
+ * remote AgentSystem once, however many of its agents subscribed, and is
+ * fanned out to them there.
+ *
+ * The payload of a PUBLISH message is the topic, as an unsigned short length
+ * and UTF-8 bytes, followed by the published data; getTopic and getData take
+ * it apart.
+ */
+public class Topics {
+
+    public static final String MULTICAST_PROPERTY = "agentsystem.multicastGroup"; // Group to publish to, if any.
+
+    private final Map<String, CopyOnWriteArrayList<Agent>> local = new ConcurrentHashMap<>(); // Local subscribers by topic.
+    private final Map<String, Set<InetSocketAddress>> remote = new ConcurrentHashMap<>(); // Remote systems by topic.
+
+    /**
+     * Subscribes a local agent to a topic.
+     *
+     * @param agent The subscribing agent.
+     * @param topic The topic.
+     * @return Boolean representing whether the agent is the topic's first
+     * local subscriber, i.e. whether other AgentSystems must be told.
+     */
+    public synchronized boolean subscribe(Agent agent, String topic) {
+        CopyOnWriteArrayList<Agent> agents = local.computeIfAbsent(topic, k -> new CopyOnWriteArrayList<>());
+        return agents.addIfAbsent(agent) && agents.size() == 1;
+    }
+
+    /**
+     * Unsubscribes a local agent from a topic.
+     *
+     * @param agent The unsubscribing agent.
+     * @param topic The topic.
+     * @return Boolean representing whether the agent was the topic's last
+     * local subscriber, i.e. whether other AgentSystems must be told.
+     */
+    public synchronized boolean unsubscribe(Agent agent, String topic) {
+        CopyOnWriteArrayList<Agent> agents = local.get(topic);
+        if (agents == null || !agents.remove(agent)) {
+            return false;
+        }
+        if (agents.isEmpty()) {
+            local.remove(topic);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Unsubscribes a local agent from every topic, e.g. when it is
+     * deregistered.
+     *
+     * @param agent The agent.
+     * @return List of the topics the agent was the last local subscriber
+     * of, i.e. that other AgentSystems must be told about.
+     */
+    public synchronized List<String> unsubscribeAll(Agent agent) {
+        List<String> withdrawn = new ArrayList<>();
+        for (String topic : local.keySet()) {
+            if (unsubscribe(agent, topic)) {
+                withdrawn.add(topic);
+            }
+        }
+        return withdrawn;
+    }
+
+    /**
+     * Retrieves the local subscribers of a topic. The list is a snapshot
+     * that is safe to iterate while agents subscribe and unsubscribe.
+     *
+     * @param topic The topic.
+     * @return List of subscribed agents, empty if there are none.
+     */
+    public List<Agent> getSubscribers(String topic) {
+        List<Agent> agents = local.get(topic);
+        return agents == null ? List.of() : agents;
+    }
+
+    /**
+     * Retrieves the topics with at least one local subscriber.
+     *
+     * @return Set of topics.
+     */
+    public Set<String> getLocalTopics() {
+        return local.keySet();
+    }
+
+    /**
+     * Retrieves the topics that AgentSystems have subscribed to.
+     *
+     * @return Set of topics, some of which may have no subscriber left.
+     */
+    public Set<String> getRemoteTopics() {
+        return remote.keySet();
+    }
+
+    /**
+     * Records that an AgentSystem has subscribers to a topic.
+     *
+     * @param topic The topic.
+     * @param address Address of the AgentSystem.
+     */
+    public void addRemote(String topic, InetSocketAddress address) {
+        remote.computeIfAbsent(topic, k -> ConcurrentHashMap.newKeySet()).add(address);
+    }
+
+    /**
+     * Records that an AgentSystem no longer has subscribers to a topic.
+     *
+     * @param topic The topic.
+     * @param address Address of the AgentSystem.
+     */
+    public void removeRemote(String topic, InetSocketAddress address) {
+        Set<InetSocketAddress> addresses = remote.get(topic);
+        if (addresses != null) {
+            addresses.remove(address);
+        }
+    }
+
+    /**
+     * Retrieves the AgentSystems with subscribers to a topic.
+     *
+     * @param topic The topic.
+     * @return Set of addresses, empty if there are none.
+     */
+    public Set<InetSocketAddress> getRemoteSubscribers(String topic) {
+        Set<InetSocketAddress> addresses = remote.get(topic);
+        return addresses == null ? Set.of() : addresses;
+    }
+
+    /**
+     * Builds the payload of a PUBLISH message.
+     *
+     * @param topic The topic.
+     * @param data The published data.
+     * @return Byte array holding the topic followed by the data.
+     */
+    public static byte[] encode(String topic, byte[] data) {
+        byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 0xFFFF) {
+            throw new IllegalArgumentException("Topic of " + name.length + " bytes is too long");
+        }
+        byte[] payload = new byte[2 + name.length + data.length];
+        payload[0] = (byte) (name.length >>> 8);
+        payload[1] = (byte) name.length;
+        System.arraycopy(name, 0, payload, 2, name.length);
+        System.arraycopy(data, 0, payload, 2 + name.length, data.length);
+        return payload;
+    }
+
+    /**
+     * Retrieves the topic of a PUBLISH message.
+     *
+     * @param msg The PUBLISH message.
+     * @return String representing the topic, or null if the payload is too
+     * short to hold one.
+     */
+    public static String getTopic(Message msg) {
+        ByteBuffer in = msg.getPayloadBuffer();
+        int start = in.position();
+        if (in.remaining() < 2 || in.remaining() < 2 + (in.getShort(start) & 0xFFFF)) {
+            return null;
+        }
+        byte[] name = new byte[in.getShort(start) & 0xFFFF];
+        in.get(start + 2, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Retrieves the published data of a PUBLISH message without copying it.
+     *
+     * @param msg The PUBLISH message.
+     * @return ByteBuffer holding the data between its position and limit.
+     */
+    public static ByteBuffer getData(Message msg) {
+        ByteBuffer in = msg.getPayloadBuffer();
+        int skip = Math.min(in.remaining(), 2 + (in.remaining() < 2 ? 0 : in.getShort(in.position()) & 0xFFFF));
+        in.position(in.position() + skip);
+        return in;
+    }
+}
@@ -0,0 +1,70 @@
+package agentsystem.bench;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for creating agents: UID generation in the Agent constructor and
+ * the reflective creation AgentSystem.instantiateLocalAgents performs for
+ * every classname on the command line.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentBenchmark {
+
+    /**
+     * Creates an Agent, which generates its UID.
+     *
+     * @return Agent that was created.
+     * @throws Throwable
+     */
+    @Benchmark
+    public Object newAgent() throws Throwable {
+        return (Object) Hooks.NEW_AGENT.invokeExact("BenchAgent");
+    }
+
+    /**
+     * Generates an agent UID the original way, from SecureRandom.
+     *
+     * @return UUID that was generated.
+     */
+    @Benchmark
+    public UUID randomUUID() {
+        return UUID.randomUUID();
+    }
+
+    /**
+     * Generates an agent UID from the AgentSystem prefix and counter.
+     *
+     * @return AgentId that was generated.
+     * @throws Throwable
+     */
+    @Benchmark
+    public Object nextAgentId() throws Throwable {
+        return (Object) Hooks.NEXT_ID.invokeExact();
+    }
+
+    /**
+     * Creates an agent from its classname the way instantiateLocalAgents does:
+     * Class.forName followed by Class.newInstance.
+     *
+     * @return Agent that was created.
+     * @throws Exception
+     */
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public Object reflectiveCreate() throws Exception {
+        Class<?> tempClass = Class.forName("PongAgent");
+        return tempClass.newInstance();
+    }
+}
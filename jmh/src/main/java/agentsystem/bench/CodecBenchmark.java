@@ -0,0 +1,117 @@
+package agentsystem.bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for parsing and writing messages: the binary frame codec, the
+ * text codec kept for interop, and the original "message:uid" split that
+ * PongAgent and ChatServerAgent used to run on every packet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    private final InetSocketAddress from = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9989);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(65507);
+    private final ByteBuffer frame = ByteBuffer.allocateDirect(65507);
+    private byte[] legacyPacket;
+    private String legacyText;
+    private Object message;
+
+    /**
+     * Prepares a chat message in every format.
+     *
+     * @throws Throwable
+     */
+    @Setup
+    public void setUp() throws Throwable {
+        Object sender = (Object) Hooks.NEXT_ID.invokeExact();
+        byte[] text = "Hello there, how is the weather today?".getBytes(StandardCharsets.UTF_8);
+        message = (Object) Hooks.NEW_MESSAGE.invokeExact(Hooks.messageType("CHAT"), sender, (Object) Hooks.NEXT_ID.invokeExact(),
+                text, (InetSocketAddress) null);
+        Hooks.ENCODE.invokeExact(frame, message);
+        frame.flip();
+        legacyText = "Hello there, how is the weather today?:" + sender;
+        legacyPacket = legacyText.getBytes();
+    }
+
+    /**
+     * The original receive path: bytes to String, then split on ':'.
+     *
+     * @return String array the agents used to inspect.
+     */
+    @Benchmark
+    public String[] legacySplit() {
+        String str = new String(legacyPacket, 0, legacyPacket.length);
+        return str.split(":");
+    }
+
+    /**
+     * Parses the text format kept for interop with older AgentSystems.
+     *
+     * @return Message that was parsed.
+     * @throws Throwable
+     */
+    @Benchmark
+    public Object decodeText() throws Throwable {
+        return (Object) Hooks.DECODE_TEXT.invokeExact(legacyText, from);
+    }
+
+    /**
+     * Parses a binary frame into a Message.
+     *
+     * @return Message that was parsed.
+     * @throws Throwable
+     */
+    @Benchmark
+    public Object decodeBinary() throws Throwable {
+        frame.position(0);
+        return (Object) Hooks.DECODE.invokeExact(frame, from);
+    }
+
+    /**
+     * Reads a binary frame into a pooled view and releases it, as the
+     * dispatcher does for every message it routes.
+     *
+     * @return Message view that was read.
+     * @throws Throwable
+     */
+    @Benchmark
+    public Object readView() throws Throwable {
+        frame.position(0);
+        Object view = (Object) Hooks.READ_VIEW.invokeExact(frame, from);
+        Hooks.RELEASE.invokeExact(view);
+        return view;
+    }
+
+    /**
+     * Writes a Message as a binary frame.
+     *
+     * @return Buffer holding the frame.
+     * @throws Throwable
+     */
+    @Benchmark
+    public ByteBuffer encodeBinary() throws Throwable {
+        out.clear();
+        Hooks.ENCODE.invokeExact(out, message);
+        return out;
+    }
+}
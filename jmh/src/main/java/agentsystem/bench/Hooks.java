@@ -0,0 +1,203 @@
+package agentsystem.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Hooks class giving the benchmarks access to the agent classes.
+ *
+ * JMH refuses benchmarks in the default package, and Java cannot import from
+ * it, so the agent classes are reached through method handles instead. The
+ * handles are static final, which lets the JIT inline them like direct calls.
+ */
+final class Hooks {
+
+    static final Class<?> AGENT = load("Agent");
+    static final Class<?> MESSAGE = load("Message");
+    static final Class<?> MESSAGE_TYPE = load("MessageType");
+    static final Class<?> AGENT_ID = load("AgentId");
+
+    static final MethodHandle NEW_AGENT = constructor(AGENT, String.class); // (String)Object
+    static final MethodHandle NEW_PONG_AGENT = constructor(load("PongAgent")); // ()Object
+    static final MethodHandle NEW_MESSAGE = constructor(MESSAGE, MESSAGE_TYPE, AGENT_ID, AGENT_ID,
+            byte[].class, InetSocketAddress.class); // (Object, Object, Object, byte[], InetSocketAddress)Object
+    static final MethodHandle NEXT_ID = staticMethod(AGENT_ID, "next", AGENT_ID); // ()Object
+    static final MethodHandle GET_ID = virtual(AGENT, "getId", AGENT_ID); // (Object)Object
+    static final MethodHandle RECEIVE = virtual(AGENT, "receive", MESSAGE); // (Object)Object
+    static final MethodHandle SEND_MSG = staticMethod(load("AgentSystem"), "sendMsg", void.class,
+            AGENT, MESSAGE_TYPE, AGENT_ID, byte[].class, InetSocketAddress.class); // (Object, Object, Object, byte[], InetSocketAddress)void
+    static final MethodHandle LEASE_MSG = staticMethod(load("AgentSystem"), "leaseMsg", ByteBuffer.class,
+            AGENT, MESSAGE_TYPE, AGENT_ID); // (Object, Object, Object)ByteBuffer
+    static final MethodHandle SEND_LEASED = staticMethod(load("AgentSystem"), "sendLeased", void.class,
+            ByteBuffer.class, InetSocketAddress.class); // (ByteBuffer, InetSocketAddress)void
+    static final MethodHandle ENCODE = staticMethod(load("MessageCodec"), "encode", void.class,
+            ByteBuffer.class, MESSAGE); // (ByteBuffer, Object)void
+    static final MethodHandle DECODE = staticMethod(load("MessageCodec"), "decode", MESSAGE,
+            ByteBuffer.class, InetSocketAddress.class); // (ByteBuffer, InetSocketAddress)Object
+    static final MethodHandle READ_VIEW = staticMethod(load("MessageView"), "read", MESSAGE,
+            ByteBuffer.class, InetSocketAddress.class); // (ByteBuffer, InetSocketAddress)Object
+    static final MethodHandle RELEASE = virtual(MESSAGE, "release", void.class); // (Object)void
+    static final MethodHandle DECODE_TEXT = staticMethod(load("MessageCodec"), "decodeText", MESSAGE,
+            String.class, InetSocketAddress.class); // (String, InetSocketAddress)Object
+
+    /**
+     * Constructor for Hooks, which only has static members.
+     */
+    private Hooks() {
+    }
+
+    /**
+     * Retrieves a MessageType constant.
+     *
+     * @param name Name of the constant.
+     * @return Object representing the MessageType.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object messageType(String name) {
+        return Enum.valueOf((Class) MESSAGE_TYPE, name);
+    }
+
+    /**
+     * Registers an agent with the AgentSystem and starts it on the agent
+     * scheduler.
+     *
+     * @param agent The agent to start.
+     */
+    static void startAgent(Object agent) {
+        try {
+            Class<?> system = load("AgentSystem");
+            Object agents = Array.newInstance(AGENT, 1);
+            Array.set(agents, 0, agent);
+            system.getMethod("addLocalAgents", agents.getClass()).invoke(null, agents);
+            Object scheduler = system.getMethod("getScheduler").invoke(null);
+            scheduler.getClass().getMethod("schedule", AGENT).invoke(scheduler, agent);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Registers an agent with the AgentSystem without starting it, so that
+     * messages addressed to it reach its inbox.
+     *
+     * @param agent The agent to register.
+     */
+    static void registerAgent(Object agent) {
+        try {
+            Object agents = Array.newInstance(AGENT, 1);
+            Array.set(agents, 0, agent);
+            load("AgentSystem").getMethod("addLocalAgents", agents.getClass()).invoke(null, agents);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Retrieves the address of this JVM's dispatcher on the loopback
+     * interface.
+     *
+     * @return InetSocketAddress that reaches the local agents.
+     */
+    static InetSocketAddress dispatcherAddress() {
+        try {
+            Object dispatcher = load("AgentSystem").getMethod("getDispatcher").invoke(null);
+            int port = (Integer) dispatcher.getClass().getMethod("getLocalPort").invoke(dispatcher);
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Loads an agent class from the default package.
+     *
+     * @param name Name of the class.
+     * @return Class that was loaded.
+     */
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Finds a public constructor, with its result typed as Object.
+     *
+     * @param owner Class to construct.
+     * @param params Parameter types of the constructor.
+     * @return MethodHandle creating an instance.
+     */
+    private static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                    .findConstructor(owner, MethodType.methodType(void.class, params));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Finds a public instance method, with agent types erased to Object.
+     *
+     * @param owner Class declaring the method.
+     * @param name Name of the method.
+     * @param result Return type of the method.
+     * @param params Parameter types of the method.
+     * @return MethodHandle invoking the method.
+     */
+    private static MethodHandle virtual(Class<?> owner, String name, Class<?> result, Class<?>... params) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                    .findVirtual(owner, name, MethodType.methodType(result, params));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Finds a public static method, with agent types erased to Object.
+     *
+     * @param owner Class declaring the method.
+     * @param name Name of the method.
+     * @param result Return type of the method.
+     * @param params Parameter types of the method.
+     * @return MethodHandle invoking the method.
+     */
+    private static MethodHandle staticMethod(Class<?> owner, String name, Class<?> result, Class<?>... params) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                    .findStatic(owner, name, MethodType.methodType(result, params));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Replaces every default-package type in a method type with Object.
+     *
+     * @param type The method type to erase.
+     * @return MethodType usable from this package.
+     */
+    private static MethodType erase(MethodType type) {
+        MethodType erased = type;
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (type.parameterType(i).getPackageName().isEmpty()) {
+                erased = erased.changeParameterType(i, Object.class);
+            }
+        }
+        if (type.returnType().getPackageName().isEmpty()) {
+            erased = erased.changeReturnType(Object.class);
+        }
+        return erased;
+    }
+}
@@ -0,0 +1,96 @@
+package agentsystem.bench;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for sending messages through the shared dispatcher: a one-way
+ * AgentSystem.sendMsg with a byte array payload, the same send written
+ * straight into a leased pooled buffer, and a ping/pong round trip with a
+ * PongAgent running in the same JVM over loopback.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessagingBenchmark {
+
+    @Param({"64", "1024"})
+    public int size; // Payload bytes.
+
+    private final Object ping = Hooks.messageType("PING");
+    private byte[] payload;
+    private Object sender;
+    private Object pong;
+    private Object pongID;
+    private Object nobody;
+    private InetSocketAddress address;
+
+    /**
+     * Starts a PongAgent and registers the agent the pings are sent from.
+     *
+     * @throws Throwable
+     */
+    @Setup
+    public void setUp() throws Throwable {
+        payload = new byte[size];
+        payload[0] = 1; // Non-empty payloads are echoed without ending the PongAgent.
+        sender = (Object) Hooks.NEW_AGENT.invokeExact("BenchPing");
+        Hooks.registerAgent(sender);
+        pong = (Object) Hooks.NEW_PONG_AGENT.invokeExact();
+        pongID = (Object) Hooks.GET_ID.invokeExact(pong);
+        Hooks.startAgent(pong);
+        nobody = (Object) Hooks.NEXT_ID.invokeExact();
+        address = Hooks.dispatcherAddress();
+    }
+
+    /**
+     * Sends a message to an agent that does not exist, so the receiving side
+     * only decodes and drops it.
+     *
+     * @throws Throwable
+     */
+    @Benchmark
+    public void sendMsg() throws Throwable {
+        Hooks.SEND_MSG.invokeExact(sender, ping, nobody, payload, address);
+    }
+
+    /**
+     * Sends the same message as sendMsg, writing the payload straight into a
+     * buffer leased from the per-thread pool.
+     *
+     * @throws Throwable
+     */
+    @Benchmark
+    public void sendLeased() throws Throwable {
+        ByteBuffer frame = (ByteBuffer) Hooks.LEASE_MSG.invokeExact(sender, ping, nobody);
+        frame.put(payload);
+        Hooks.SEND_LEASED.invokeExact(frame, address);
+    }
+
+    /**
+     * Sends a ping to the PongAgent and waits for the echoed pong.
+     *
+     * @return Pong that was received.
+     * @throws Throwable
+     */
+    @Benchmark
+    public Object roundTrip() throws Throwable {
+        Hooks.SEND_MSG.invokeExact(sender, ping, pongID, payload, address);
+        return (Object) Hooks.RECEIVE.invokeExact(sender);
+    }
+}